@@ -0,0 +1,119 @@
+/**
+ * Baked palette class
+ * Samples any palette into a table of float RGB components, so that a color index can be colorized
+ * without calling the palette nor creating any color.
+ *
+ * The table holds the colors of the indexes i / (resolution - 1), and an index is given the color of the nearest one.
+ * For an interpolated palette of n colors, a linear component is then at most (n - 1) / (2 * (resolution - 1)) away from
+ * the exact one, plus the rounding to float (6e-8). The sRGB encoding multiplies a difference by 12.92 at most, near black,
+ * so a difference of e gives less than 12.92 * 255 * e 8-bit levels. With the 65536 entries used by default and the plain
+ * sRGB encoding, an 8-bit level is then one away at most from the exact one for up to 40 colors. A gamma or a brightness
+ * above 1 makes the encoding steeper, and the levels can differ more.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.color;
+
+public final class BakedPalette implements Palette {
+	public static final int DEFAULT_RESOLUTION = 1 << 16;
+
+	private final float[] table; // Red, green and blue of each entry, one entry after the other
+	private final int resolution;
+
+	/**
+	 * BakedPalette constructor
+	 *
+	 * @param palette The palette to sample
+	 * @param resolution The number of entries of the table
+	 * @throws IllegalArgumentException When there are less than 2 entries
+	 */
+	public BakedPalette(Palette palette, int resolution) {
+		if(resolution < 2) {
+			throw new IllegalArgumentException("There must be at least 2 entries");
+		}
+
+		this.resolution = resolution;
+		table = new float[3 * resolution];
+
+		for(int i = 0; i < resolution; i++) {
+			Color color = palette.colorForIndex(Math.min(1, (double)i / (resolution - 1)));
+			table[3 * i] = (float)color.red();
+			table[3 * i + 1] = (float)color.green();
+			table[3 * i + 2] = (float)color.blue();
+		}
+	}
+
+	/**
+	 * Bakes any palette with the default resolution. A palette already baked is given back as it is.
+	 *
+	 * @param palette The palette to sample
+	 * @return The baked palette
+	 */
+	public static BakedPalette of(Palette palette) {
+		if(palette instanceof BakedPalette) return (BakedPalette)palette;
+
+		return new BakedPalette(palette, DEFAULT_RESOLUTION);
+	}
+
+	/**
+	 * @return The number of entries of the table
+	 */
+	public int resolution() {
+		return resolution;
+	}
+
+	/**
+	 * Gives the entry of the table nearest to a color index
+	 *
+	 * @param index Color index of a point, clamped to [0,1]
+	 * @return The entry of the index, to be given to red, green and blue
+	 */
+	public int entry(double index) {
+		if(!(index > 0)) return 0; // NaN included
+		if(index >= 1) return resolution - 1;
+
+		return (int)(index * (resolution - 1) + 0.5);
+	}
+
+	/**
+	 * @param entry An entry of the table
+	 * @return The red component of the entry
+	 */
+	public float red(int entry) {
+		return table[3 * entry];
+	}
+
+	/**
+	 * @param entry An entry of the table
+	 * @return The green component of the entry
+	 */
+	public float green(int entry) {
+		return table[3 * entry + 1];
+	}
+
+	/**
+	 * @param entry An entry of the table
+	 * @return The blue component of the entry
+	 */
+	public float blue(int entry) {
+		return table[3 * entry + 2];
+	}
+
+	/**
+	 * Determines a color for the given color index, from the nearest entry of the table
+	 *
+	 * @param index Color index of a point
+	 * @throws IllegalArgumentException When index isn't included in [0,1]
+	 * @return The color of the nearest entry
+	 */
+	public Color colorForIndex(double index) throws IllegalArgumentException {
+		if(index < 0 || index > 1) {
+			throw new IllegalArgumentException("The index must be between 0 and 1");
+		}
+
+		int entry = entry(index);
+		return new Color(red(entry), green(entry), blue(entry));
+	}
+}
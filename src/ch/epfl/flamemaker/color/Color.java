@@ -83,9 +83,11 @@ public final class Color {
 	 * @return A 24-bit value constitued of 8 "red" bits, 8 "green" bits and 8 "blue" bits in that order
 	 */
 	public int asPackedRGB() {
-		int r = sRGBEncode(this.r, 255);
-		int g = sRGBEncode(this.g, 255);
-		int b = sRGBEncode(this.b, 255);
+		ToneMap sRGB = ToneMap.sRGB(255); // Same levels as sRGBEncode, without computing any power
+
+		int r = sRGB.encode(this.r);
+		int g = sRGB.encode(this.g);
+		int b = sRGB.encode(this.b);
 
 		return (r << 16) | (g << 8) | b; // Packs all 3 values into one integer
 	}
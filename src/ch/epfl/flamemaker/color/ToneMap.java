@@ -0,0 +1,142 @@
+/**
+ * ToneMap class
+ * Turns linear color components into integer sRGB levels with tables computed once, instead of a Math.pow per component.
+ * Before the sRGB encoding, a component v is mapped to min(1, brightness * v^(1/gamma)).
+ *
+ * The tables hold, for each level, the smallest component giving it, and for each of the cells [i/n, (i+1)/n[ of [0,1],
+ * the level of its start. A component is encoded by looking up its cell and moving up the levels whose smallest
+ * component it reaches, most of the time none or one. As the encoding is monotonic, the result is exactly the one
+ * of Color.sRGBEncode on the tone-mapped component, there is no approximation.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.color;
+
+public final class ToneMap {
+	private final double gamma, brightness;
+	private final int max;
+	private final int cells;
+	private final char[] cellLevel; // Level of the start of each cell
+	private final double[] threshold; // Smallest component of each level, then +infinity
+
+	/**
+	 * ToneMap constructor
+	 *
+	 * @param gamma The gamma applied before the sRGB encoding, 1 for none
+	 * @param brightness The factor applied after the gamma, 1 for none
+	 * @param max The greatest level, 255 for 8-bit output and 65535 for 16-bit output
+	 * @throws IllegalArgumentException When gamma or brightness isn't positive, or when max isn't in [1,65535]
+	 */
+	public ToneMap(double gamma, double brightness, int max) {
+		if(!(gamma > 0) || !(brightness > 0) || max < 1 || max > 65535) {
+			throw new IllegalArgumentException();
+		}
+
+		this.gamma = gamma;
+		this.brightness = brightness;
+		this.max = max;
+
+		threshold = new double[max + 2];
+		threshold[max + 1] = Double.POSITIVE_INFINITY;
+
+		/* Bisection on the bits of the components, which are ordered as the positive doubles they represent */
+		long low = 0;
+		for(int level = 1; level <= max; level++) {
+			long high = Double.doubleToLongBits(1.0);
+
+			if(slowEncode(1.0) < level) {
+				low = Double.doubleToLongBits(Double.POSITIVE_INFINITY); // Level never reached
+			}
+			else {
+				while(low < high) {
+					long middle = (low + high) >>> 1;
+
+					if(slowEncode(Double.longBitsToDouble(middle)) >= level) high = middle;
+					else low = middle + 1;
+				}
+			}
+
+			threshold[level] = Double.longBitsToDouble(low);
+		}
+
+		cells = 16 * Integer.highestOneBit(max) * 2;
+		cellLevel = new char[cells + 1];
+
+		for(int i = 0; i <= cells; i++) {
+			cellLevel[i] = (char)slowEncode((double)i / cells);
+		}
+	}
+
+	/**
+	 * Gives the tone map of the plain sRGB encoding, without gamma nor brightness
+	 *
+	 * @param max The greatest level, 255 or 65535 are computed once for all
+	 * @return The tone map of the plain sRGB encoding
+	 */
+	public static ToneMap sRGB(int max) {
+		if(max == 255) return Standard8.TONE_MAP;
+		if(max == 65535) return Standard16.TONE_MAP;
+
+		return new ToneMap(1, 1, max);
+	}
+
+	/* The standard tables are only computed when they are needed */
+	private static final class Standard8 {
+		static final ToneMap TONE_MAP = new ToneMap(1, 1, 255);
+	}
+
+	private static final class Standard16 {
+		static final ToneMap TONE_MAP = new ToneMap(1, 1, 65535);
+	}
+
+	/**
+	 * @return The gamma applied before the sRGB encoding
+	 */
+	public double gamma() {
+		return gamma;
+	}
+
+	/**
+	 * @return The factor applied after the gamma
+	 */
+	public double brightness() {
+		return brightness;
+	}
+
+	/**
+	 * @return The greatest level
+	 */
+	public int max() {
+		return max;
+	}
+
+	/**
+	 * Encodes a linear component
+	 *
+	 * @param v The component, clamped to [0,1]
+	 * @return The level of the component, the same as Color.sRGBEncode(min(1, brightness * v^(1/gamma)), max)
+	 */
+	public int encode(double v) {
+		if(!(v > 0)) return cellLevel[0]; // NaN included
+		if(v > 1) v = 1;
+
+		int level = cellLevel[(int)(v * cells)];
+
+		while(v >= threshold[level + 1]) {
+			level++;
+		}
+
+		return level;
+	}
+
+	/*
+	 * Encoding computed without the tables
+	 */
+	private int slowEncode(double v) {
+		double mapped = gamma == 1 ? v : Math.pow(v, 1 / gamma);
+
+		return Color.sRGBEncode(Math.min(1, brightness * mapped), max);
+	}
+}
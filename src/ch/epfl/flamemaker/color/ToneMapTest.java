@@ -0,0 +1,118 @@
+/**
+ * ToneMapTest class
+ * Checks that the tables of ToneMap give exactly the levels of Color.sRGBEncode, on random components
+ * and on both sides of every step between two levels.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.color;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ToneMapTest {
+	private static final double[][] GAMMA_AND_BRIGHTNESS = {{1, 1}, {2.2, 1}, {1, 1.7}, {0.5, 0.3}};
+
+	@Test
+	public void encodesRandomComponentsAsSRGBEncode() {
+		Random random = new Random(2013);
+
+		for(int max : new int[] {255, 65535, 1023, 1}) {
+			for(double[] gb : GAMMA_AND_BRIGHTNESS) {
+				ToneMap toneMap = new ToneMap(gb[0], gb[1], max);
+
+				for(int k = 0; k < 200000; k++) {
+					double v = k % 2 == 0 ? random.nextDouble() : random.nextDouble() * 0.01; // The linear part too
+
+					assertEquals("component " + v, reference(v, gb[0], gb[1], max), toneMap.encode(v));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void encodesBothSidesOfEachStepAsSRGBEncode() {
+		for(int max : new int[] {255, 65535}) {
+			for(double[] gb : GAMMA_AND_BRIGHTNESS) {
+				ToneMap toneMap = max == 65535 && gb[0] == 1 && gb[1] == 1 ? ToneMap.sRGB(max) : new ToneMap(gb[0], gb[1], max);
+				long low = 0;
+
+				for(int level = 1; level <= max && reference(1.0, gb[0], gb[1], max) >= level; level++) {
+					low = firstReaching(level, low, gb[0], gb[1], max);
+					double first = Double.longBitsToDouble(low);
+					double before = Math.nextAfter(first, Double.NEGATIVE_INFINITY);
+
+					assertEquals("level " + level + " at " + first, reference(first, gb[0], gb[1], max), toneMap.encode(first));
+					assertEquals("level " + level + " before " + first, reference(before, gb[0], gb[1], max), toneMap.encode(before));
+				}
+			}
+		}
+	}
+
+	/* The tables rely on the encoding being monotonic, the junction of its linear and power parts included */
+	@Test
+	public void sRGBEncodeIsMonotonicAtTheJunction() {
+		for(int max : new int[] {255, 65535}) {
+			double v = 0.0031308;
+
+			for(int k = 0; k < 10000; k++) {
+				v = Math.nextAfter(v, Double.NEGATIVE_INFINITY);
+			}
+
+			for(int k = 0, previous = 0; k < 20000; k++, v = Math.nextUp(v)) {
+				int level = Color.sRGBEncode(v, max);
+
+				assertTrue("at " + v, level >= previous);
+				previous = level;
+			}
+		}
+	}
+
+	@Test
+	public void clampsTheComponents() {
+		ToneMap toneMap = ToneMap.sRGB(255);
+
+		assertEquals(Color.sRGBEncode(0, 255), toneMap.encode(-3));
+		assertEquals(Color.sRGBEncode(0, 255), toneMap.encode(Double.NaN));
+		assertEquals(Color.sRGBEncode(1, 255), toneMap.encode(1.5));
+		assertEquals(Color.sRGBEncode(1, 255), toneMap.encode(Double.POSITIVE_INFINITY));
+	}
+
+	@Test
+	public void packsTheLevelsOfSRGBEncode() {
+		Random random = new Random(7);
+
+		for(int k = 0; k < 100000; k++) {
+			Color color = new Color(random.nextDouble(), random.nextDouble(), random.nextDouble());
+			int expected = (Color.sRGBEncode(color.red(), 255) << 16) | (Color.sRGBEncode(color.green(), 255) << 8) | Color.sRGBEncode(color.blue(), 255);
+
+			assertEquals(expected, color.asPackedRGB());
+		}
+	}
+
+	/* The encoding the tables replace, as documented by ToneMap */
+	private static int reference(double v, double gamma, double brightness, int max) {
+		double mapped = gamma == 1 ? v : Math.pow(v, 1 / gamma);
+
+		return Color.sRGBEncode(Math.min(1, brightness * mapped), max);
+	}
+
+	/* Bits of the smallest component reaching the level, found by bisection from low */
+	private static long firstReaching(int level, long low, double gamma, double brightness, int max) {
+		long high = Double.doubleToLongBits(1.0);
+
+		while(low < high) {
+			long middle = (low + high) >>> 1;
+
+			if(reference(Double.longBitsToDouble(middle), gamma, brightness, max) >= level) high = middle;
+			else low = middle + 1;
+		}
+
+		return low;
+	}
+}
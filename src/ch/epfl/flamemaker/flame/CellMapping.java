@@ -0,0 +1,65 @@
+/**
+ * CellMapping class
+ * Maps the points of a frame to the cells of a grid covering it, the same way for all the accumulators.
+ *
+ * A point is kept when the frame contains it, as Rectangle.contains tells, and its cell is the floor of
+ * the point translated to the bottom left corner of the frame then scaled to the grid. These are the
+ * operations of the first accumulator, so the cells are the same as the ones it gave. The cells that
+ * rounding would put just past the top or right border are left out.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import ch.epfl.flamemaker.geometry2d.*;
+
+final class CellMapping {
+	private final double left, right, bottom, top;
+	private final double scaleX, scaleY;
+	private final int columns, rows;
+
+	/**
+	 * CellMapping constructor
+	 *
+	 * @param frame The frame covered by the grid
+	 * @param columns The number of columns of the grid
+	 * @param rows The number of rows of the grid
+	 */
+	CellMapping(Rectangle frame, int columns, int rows) {
+		this.left = frame.left();
+		this.right = frame.right();
+		this.bottom = frame.bottom();
+		this.top = frame.top();
+		this.columns = columns;
+		this.rows = rows;
+
+		scaleX = (columns/(frame.right()-frame.left()));
+		scaleY = (rows/(frame.top()-frame.bottom()));
+	}
+
+	/**
+	 * Gives the column of a point. Both comparisons are evaluated with &, without branching.
+	 *
+	 * @param x The x coordinate of the point
+	 * @return The column of the point, or -1 when it isn't in the frame
+	 */
+	int column(double x) {
+		int j = (int)((x - left) * scaleX); // Truncating is the same as Math.floor for the points of the frame
+
+		return (x >= left) & (x < right) & (j < columns) ? j : -1;
+	}
+
+	/**
+	 * Gives the row of a point, counted from the bottom of the frame
+	 *
+	 * @param y The y coordinate of the point
+	 * @return The row of the point, or -1 when it isn't in the frame
+	 */
+	int row(double y) {
+		int i = (int)((y - bottom) * scaleY);
+
+		return (y >= bottom) & (y < top) & (i < rows) ? i : -1;
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * CellMappingTest class
+ * Checks that the accumulators keep the points and find their cells the same way as the first
+ * accumulator did, with Rectangle.contains and the translation and scaling of the frame.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class CellMappingTest {
+	private static final Rectangle[] FRAMES = {
+		new Rectangle(new Point(-0.25, 0), 5, 4),
+		new Rectangle(new Point(0.1, 0.1), 3, 3),
+		new Rectangle(new Point(1e6, -1e-3), 0.7, 1e-5)
+	};
+	private static final int[][] SIZES = {{500, 400}, {3, 7}, {1, 1}, {4801, 1999}};
+
+	@Test
+	public void givesTheCellsOfTheFirstAccumulatorForRandomPoints() {
+		Random random = new Random(2013);
+
+		for(Rectangle frame : FRAMES) {
+			for(int[] size : SIZES) {
+				CellMapping mapping = new CellMapping(frame, size[0], size[1]);
+
+				for(int k = 0; k < 100000; ++k) {
+					double x = frame.left() - frame.width()/4 + random.nextDouble() * frame.width() * 1.5;
+					double y = frame.bottom() - frame.height()/4 + random.nextDouble() * frame.height() * 1.5;
+
+					assertSameCell(frame, size[0], size[1], mapping, x, y);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void givesTheCellsOfTheFirstAccumulatorAroundTheBorders() {
+		for(Rectangle frame : FRAMES) {
+			for(int[] size : SIZES) {
+				CellMapping mapping = new CellMapping(frame, size[0], size[1]);
+
+				for(int j = 0; j <= size[0]; ++j) {
+					double x = frame.left() + j * frame.width() / size[0];
+
+					for(double nearX : new double[] {Math.nextAfter(x, Double.NEGATIVE_INFINITY), x, Math.nextUp(x)}) {
+						assertSameCell(frame, size[0], size[1], mapping, nearX, frame.center().y());
+						assertSameCell(frame, size[0], size[1], mapping, nearX, frame.top());
+						assertSameCell(frame, size[0], size[1], mapping, nearX, frame.bottom());
+					}
+				}
+
+				for(int i = 0; i <= size[1]; ++i) {
+					double y = frame.bottom() + i * frame.height() / size[1];
+
+					for(double nearY : new double[] {Math.nextAfter(y, Double.NEGATIVE_INFINITY), y, Math.nextUp(y)}) {
+						assertSameCell(frame, size[0], size[1], mapping, frame.center().x(), nearY);
+						assertSameCell(frame, size[0], size[1], mapping, frame.left(), nearY);
+						assertSameCell(frame, size[0], size[1], mapping, frame.right(), nearY);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void leavesOutTheValuesThatArentNumbers() {
+		CellMapping mapping = new CellMapping(FRAMES[0], 500, 400);
+
+		for(double v : new double[] {Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -1e300, 1e300}) {
+			assertEquals(-1, mapping.column(v));
+			assertEquals(-1, mapping.row(v));
+		}
+	}
+
+	@Test
+	public void accumulatorsAgreeWithTheMapping() {
+		Rectangle frame = FRAMES[0];
+		FlameAccumulator.Builder builder = new FlameAccumulator.Builder(frame, 50, 40);
+		Random random = new Random(7);
+
+		for(int k = 0; k < 100000; ++k) {
+			builder.hit(frame.left() + (random.nextDouble() * 1.2 - 0.1) * frame.width(),
+					frame.bottom() + (random.nextDouble() * 1.2 - 0.1) * frame.height(), random.nextDouble());
+		}
+		FlameAccumulator accumulator = builder.build();
+
+		random = new Random(7);
+		int[] counts = new int[50 * 40];
+		CellMapping mapping = new CellMapping(frame, 50, 40);
+
+		for(int k = 0; k < 100000; ++k) {
+			int j = mapping.column(frame.left() + (random.nextDouble() * 1.2 - 0.1) * frame.width());
+			int i = mapping.row(frame.bottom() + (random.nextDouble() * 1.2 - 0.1) * frame.height());
+			random.nextDouble();
+
+			if((i | j) >= 0) ++counts[i * 50 + j];
+		}
+
+		int maxCount = 0;
+		for(int count : counts) maxCount = Math.max(maxCount, count);
+
+		for(int i = 0; i < 40; ++i) {
+			for(int j = 0; j < 50; ++j) {
+				double expected = counts[i * 50 + j] == 0 ? 0 : Math.log(counts[i * 50 + j] + 1)/Math.log(maxCount + 1);
+				assertEquals(expected, accumulator.intensity(j, i), 1e-12);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void hitChecksTheColorIndexOfAPoint() {
+		new FlameAccumulator.Builder(FRAMES[0], 50, 40).hit(new Point(0, 0), 1.5);
+	}
+
+	/* The mapping of the first accumulator : Rectangle.contains, then the translation and scaling, then Math.floor */
+	private static void assertSameCell(Rectangle frame, int columns, int rows, CellMapping mapping, double x, double y) {
+		Point p = new Point(x, y);
+		int expectedColumn = -1, expectedRow = -1;
+
+		if(frame.contains(p)) {
+			AffineTransformation scale = AffineTransformation.newScaling(columns/(frame.right()-frame.left()), rows/(frame.top()-frame.bottom()));
+			AffineTransformation translate = AffineTransformation.newTranslation(-frame.left(), -frame.bottom());
+			Point q = scale.transformPoint(translate.transformPoint(p));
+
+			expectedColumn = (int)Math.floor(q.x());
+			expectedRow = (int)Math.floor(q.y());
+
+			if(expectedColumn >= columns || expectedRow >= rows) { // The first accumulator failed on these points
+				expectedColumn = expectedRow = -1;
+			}
+		}
+
+		int column = mapping.column(x), row = mapping.row(y);
+
+		if(expectedColumn < 0) {
+			assertTrue("(" + x + ", " + y + ") kept", column < 0 || row < 0);
+		}
+		else {
+			assertEquals("column of (" + x + ", " + y + ")", expectedColumn, column);
+			assertEquals("row of (" + x + ", " + y + ")", expectedRow, row);
+		}
+	}
+}
@@ -12,13 +12,49 @@ import ch.epfl.flamemaker.geometry2d.*;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Flame {
+	static final long DEFAULT_SEED = 2013; // Makes it determinist
+	static final long CHUNK_ITERATIONS = 1 << 20; // Must not depend on the number of threads
 	private List<FlameTransformation> transformationList; 
+	private final double[] colorIndexes;
+	private final FlameKernel kernel;
 
 	public Flame(List<FlameTransformation> transformations) {
 		transformationList = new ArrayList<FlameTransformation>(transformations);
+
+		/* The color indexes only depend on the transformations, they are computed once for all */
+		colorIndexes = new double[transformationList.size()];
+		for(int i = 0; i < colorIndexes.length; i++) {
+			double colorIndex = (new FlameTransformation.Builder(transformationList.get(i))).colorIndex();
+			colorIndexes[i] = Double.isNaN(colorIndex) ? defaultColorIndex(i) : colorIndex;
+		}
+
+		/* Compiles the transformations once, the chaos algorithm then works on primitive values only */
+		kernel = new FlameKernel(transformationList, colorIndexes);
+	}
+
+	/**
+	 * Color index getter
+	 * 
+	 * @param index The index of the transformation
+	 * @return The color index given to the points by the transformation
+	 */
+	public double colorIndex(int index) {
+		return colorIndexes[index];
+	}
+
+	/**
+	 * @return The compiled form of this flame, used by the chaos algorithm
+	 */
+	FlameKernel kernel() {
+		return kernel;
 	}
 
 	/**
@@ -31,57 +67,428 @@ public class Flame {
 	 * @return A Flame accumulator that holds the entire "image" of the fractal
 	 */
 	public FlameAccumulator compute(Rectangle frame, int width, int height, int density) {
-		FlameAccumulator.Builder flame = new FlameAccumulator.Builder(frame, width, height);
-		Random rand = new Random(2013); // Makes it determinist
-		int iterations = density * width * height;
-		int listSize = transformationList.size();
-		int i;
-		Point p = new Point(0, 0);
-		double previousColorIndex = 0, actualColorIndex = 0, transformationColorIndex = 0;
+		return compute(frame, width, height, density, DEFAULT_SEED, 1);
+	}
 
-		// Doing 20 iterations as demanded in the assignement
-		for(int m = 0; m < 20; m++) {
-			i = rand.nextInt(listSize);
-			transformationColorIndex = colorIndex(i);
-			actualColorIndex = 0.5*(transformationColorIndex + previousColorIndex);
+	/**
+	 * Computes a fractal of type flame on several threads.
+	 * Each thread runs its own orbits in its own accumulator, the partial accumulators are merged at the end.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param threads The number of threads to compute the fractal with
+	 * @return A Flame accumulator that holds the entire "image" of the fractal
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, int threads) {
+		return compute(frame, width, height, density, DEFAULT_SEED, threads);
+	}
 
-			p = (transformationList.get(i)).transformPoint(p);
+	/**
+	 * Computes a fractal of type flame on several threads with the given seed.
+	 * The result only depends on the seed, not on the number of threads.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @param threads The number of threads to compute the fractal with
+	 * @return A Flame accumulator that holds the entire "image" of the fractal
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, long seed, int threads) {
+		return compute(frame, width, height, density, seed, threads, null);
+	}
+
+	/**
+	 * Computes a fractal of type flame on a single thread, stopping early when the given control asks for it.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param control The control receiving the progress and stopping the computation when its budget runs out or when it is cancelled
+	 * @return A Flame accumulator that holds the points computed until the end or until the stop
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, FlameRenderControl control) {
+		return compute(frame, width, height, density, DEFAULT_SEED, 1, control);
+	}
+
+	/**
+	 * Computes a fractal of type flame on several threads with the given seed, stopping early when the given control asks for it.
+	 * The result is the same as without control when the computation isn't stopped.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @param threads The number of threads to compute the fractal with
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return A Flame accumulator that holds the points computed until the end or until the stop
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, long seed, int threads, FlameRenderControl control) {
+		return computeMultiOrbit(frame, width, height, density, seed, threads, 1, control);
+	}
 
-			previousColorIndex = actualColorIndex;
+	/**
+	 * Computes a fractal of type flame until its image converges, instead of using a fixed density.
+	 * Sparse flames stop early, dense ones get more iterations, up to the given maximum density.
+	 * The image has converged when the normalized log-intensity of its pixels hit, the ones of the empty background
+	 * left out, differs on average by at most the tolerance from the image computed with half the iterations.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param tolerance The greatest mean change of the normalized log-intensity, in [0,1] (one 8-bit step is about 0.004)
+	 * @param maxDensity The density at which the computation stops, even if the image hasn't converged
+	 * @return A Flame accumulator that holds the entire "image" of the fractal
+	 * @see FlameSession#continueUntilConverged(double, long)
+	 */
+	public FlameAccumulator computeAdaptive(Rectangle frame, int width, int height, double tolerance, int maxDensity) {
+		FlameSession session = new FlameSession(this, frame, width, height);
+		session.continueUntilConverged(tolerance, (long)maxDensity * width * height);
+
+		return session.snapshot();
+	}
+
+	/**
+	 * Computes a fractal of type flame on several threads, each of them advancing several independent orbits together.
+	 * The orbits of a thread are interleaved iteration by iteration : as they don't depend on each other,
+	 * the processor can compute them at the same time instead of waiting for each iteration of a single orbit.
+	 * Each orbit is a chunk with its own random stream, so the result is the same as compute with the same seed.
+	 * It isn't public : it hasn't been measured faster than a single orbit yet, its lanes being kept in arrays.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @param threads The number of threads to compute the fractal with
+	 * @param lanes The number of orbits advanced together by each thread
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return A Flame accumulator that holds the points computed until the end or until the stop
+	 * @throws IllegalArgumentException When threads or lanes isn't a positive number
+	 */
+	FlameAccumulator computeMultiOrbit(Rectangle frame, int width, int height, int density, long seed, int threads, int lanes, FlameRenderControl control) {
+		if(threads <= 0 || lanes <= 0) {
+			throw new IllegalArgumentException();
 		}
 
-		/*
-		 * Chaos algorithm
-		 *
-		 * 1) Picks a random transformation in the list of transformations
-		 * 2) Does the average of the previous transformation's color index and the actual transformation's color index
-		 * 3) Transforms a point who's origin was (0,0)
-		 * 4) Stores the transformed point with his color index in the accumulator
-		 *
-		 * Remarks : the transformed point is the same in the whole chaos algorithm. Its coordinates are continually modified.
-		 */ 
-		for(int m = 0; m < iterations; m++) {
-			i = rand.nextInt(listSize);
-			transformationColorIndex = colorIndex(i);
-			actualColorIndex = 0.5*(transformationColorIndex + previousColorIndex);
+		return run(new FlameAccumulator.Builder(frame, width, height), (long)density * width * height, seed, threads, lanes, control);
+	}
+
+	/**
+	 * Computes a fractal of type flame into the given builder, which gives the frame, the size and the oversampling of the accumulator.
+	 * The points already stored in the builder are kept, and the builder is built at the end : it can't be used anymore after this method.
+	 *
+	 * Without oversampling, each thread stores its points in its own empty copy of the builder. With oversampling, the sub-cells
+	 * take too much room for a copy per thread : the threads share a ConcurrentBuilder instead, whose points are added to the builder
+	 * at the end, so that at most twice the planes are in memory whatever the number of threads. The result is the same.
+	 *
+	 * @param flame The builder storing the points, built by this method
+	 * @param density Affects the number of iterations, given per pixel of the builder
+	 * @param seed The seed of the random transformation choices
+	 * @param threads The number of threads to compute the fractal with
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return A Flame accumulator that holds the points of the builder
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 * @throws IllegalStateException When the builder has already been built
+	 */
+	public FlameAccumulator compute(FlameAccumulator.Builder flame, int density, long seed, int threads, FlameRenderControl control) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
 
-			p = (transformationList.get(i)).transformPoint(p);
-			flame.hit(p, actualColorIndex);
+		flame.checkNotBuilt(); // Before any computation
 
-			previousColorIndex = actualColorIndex;
+		long iterations = (long)density * flame.width() * flame.height();
+
+		if(threads > 1 && flame.oversampling() > 1) {
+			FlameAccumulator.ConcurrentBuilder shared = new FlameAccumulator.ConcurrentBuilder(flame.frame(), flame.width(), flame.height(), flame.oversampling());
+			fill(shared, iterations, seed, threads, control);
+			flame.merge(shared);
+
+			return flame.build();
 		}
 
-		return flame.build(); // Builds the accumulator and makes it immutable
+		return run(flame, iterations, seed, threads, 1, control);
 	}
 
 	/**
-	 * Method that determines the color index of a transformation from its index in the list
+	 * Computes a fractal of type flame into the given shared builder, which all the threads fill at the same time.
+	 * Unlike the other methods, the threads don't have their own accumulator : the memory needed doesn't depend
+	 * on their number, at the cost of atomic updates. The result is the same as compute with the same seed.
+	 *
+	 * @param flame The shared builder storing the points
+	 * @param density Affects the number of iterations, given per pixel of the builder
+	 * @param seed The seed of the random transformation choices
+	 * @param threads The number of threads to compute the fractal with
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return A Flame accumulator that holds the points of the builder
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public FlameAccumulator compute(FlameAccumulator.ConcurrentBuilder flame, int density, long seed, int threads, FlameRenderControl control) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		fill(flame, (long)density * flame.width() * flame.height(), seed, threads, control);
+
+		return flame.build();
+	}
+
+	/*
+	 * Runs the chunks of the computation on a new pool of threads, which all store their points in the shared builder
 	 */
-	private double colorIndex(int index) {
-		if(index < 0 || index > transformationList.size()) {
-			throw new IndexOutOfBoundsException();
+	private void fill(final FlameAccumulator.ConcurrentBuilder flame, final long iterations, final long seed, int threads, final FlameRenderControl control) {
+		final AtomicLong nextChunk = new AtomicLong();
+
+		if(control != null) control.begin(iterations);
+
+		threads = (int)Math.max(1, Math.min(threads, chunkCount(iterations))); // No need of idle threads
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			List<Future<Void>> workers = new ArrayList<Future<Void>>(threads);
+
+			for(int w = 0; w < threads; w++) {
+				workers.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						accumulate(flame, seed, iterations, nextChunk, 1, control);
+						return null;
+					}
+				}));
+			}
+
+			for(Future<Void> worker : workers) {
+				join(worker);
+			}
+		}
+		finally {
+			executor.shutdown();
 		}
+	}
 
+	/**
+	 * Computes a fractal of type flame with the threads of the given executor.
+	 * The iterations are cut into chunks of fixed size, each of them being an orbit with its own warm-up
+	 * and its own random stream derived from the seed and the index of the chunk. The workers pick the
+	 * chunks one after the other and store their points in their own accumulator.
+	 * As the accumulators are merged exactly, the result only depends on the seed, whatever the number
+	 * of workers or the order in which the chunks are run.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @param executor The executor running the workers. It isn't shut down by this method
+	 * @param workers The maximum number of workers to split the chunks between
+	 * @return A Flame accumulator that holds the entire "image" of the fractal
+	 * @throws IllegalArgumentException When workers isn't a positive number
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, long seed, ExecutorService executor, int workers) {
+		return compute(frame, width, height, density, seed, executor, workers, null);
+	}
+
+	/**
+	 * Computes a fractal of type flame with the threads of the given executor, stopping early when the given control asks for it.
+	 * When the control stops the computation, the workers finish their current slice of iterations
+	 * and the points computed so far are merged.
+	 *
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @param executor The executor running the workers. It isn't shut down by this method
+	 * @param workers The maximum number of workers to split the chunks between
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return A Flame accumulator that holds the points computed until the end or until the stop
+	 * @throws IllegalArgumentException When workers isn't a positive number
+	 */
+	public FlameAccumulator compute(Rectangle frame, int width, int height, int density, long seed, ExecutorService executor, int workers, FlameRenderControl control) {
+		if(workers <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		return run(new FlameAccumulator.Builder(frame, width, height), (long)density * width * height, seed, executor, workers, 1, control);
+	}
+
+	/**
+	 * Computes a fractal of type flame on the calling thread into any kind of accumulator, for instance a tiled one.
+	 * The chunks and random streams are the same as in compute.
+	 *
+	 * @param accumulator The accumulator storing the points
+	 * @param iterations The number of iterations to do
+	 * @param seed The seed of the random transformation choices
+	 */
+	public void computeInto(PointAccumulator accumulator, long iterations, long seed) {
+		accumulate(accumulator, seed, iterations, new AtomicLong(), 1, null);
+	}
+
+	/**
+	 * Computes the chunks [firstChunk, endChunk[ of the computation of the given number of iterations on the calling thread.
+	 * Adding up the points of all the chunks, computed anywhere, gives the same accumulator as compute with the same seed.
+	 *
+	 * @param accumulator The accumulator storing the points
+	 * @param iterations The number of iterations of the whole computation
+	 * @param seed The seed of the random transformation choices
+	 * @param firstChunk The first chunk to compute
+	 * @param endChunk The chunk after the last one to compute
+	 */
+	void computeChunks(PointAccumulator accumulator, long iterations, long seed, long firstChunk, long endChunk) {
+		/* The chunks after endChunk don't exist for accumulate, the length of the others doesn't change */
+		accumulate(accumulator, seed, Math.min(iterations, endChunk * CHUNK_ITERATIONS), new AtomicLong(firstChunk), 1, null);
+	}
+
+	/*
+	 * Runs the chunks of the computation on a new pool of threads, or on the calling thread when there is only one
+	 */
+	private FlameAccumulator run(FlameAccumulator.Builder flame, long iterations, long seed, int threads, int lanes, FlameRenderControl control) {
+		if(threads == 1) {
+			return run(flame, iterations, seed, null, 1, lanes, control);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			return run(flame, iterations, seed, executor, threads, lanes, control);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	/*
+	 * Runs the chunks of the computation on the workers of the executor, or on the calling thread when there isn't any executor.
+	 * Each worker stores its points in an empty copy of the builder, which are added to the builder at the end.
+	 */
+	private FlameAccumulator run(final FlameAccumulator.Builder flame, final long iterations, final long seed, ExecutorService executor, int workers, final int lanes, final FlameRenderControl control) {
+		final AtomicLong nextChunk = new AtomicLong();
+
+		if(control != null) control.begin(iterations);
+
+		if(executor == null) {
+			accumulate(flame, seed, iterations, nextChunk, lanes, control);
+
+			return flame.build(); // Builds the accumulator and makes it immutable
+		}
+
+		workers = (int)Math.max(1, Math.min(workers, chunkCount(iterations))); // No need of idle workers
+		List<Future<FlameAccumulator.Builder>> partials = new ArrayList<Future<FlameAccumulator.Builder>>(workers);
+
+		for(int w = 0; w < workers; w++) {
+			partials.add(executor.submit(new Callable<FlameAccumulator.Builder>() {
+				public FlameAccumulator.Builder call() {
+					FlameAccumulator.Builder partial = flame.emptyCopy();
+					accumulate(partial, seed, iterations, nextChunk, lanes, control);
+					return partial;
+				}
+			}));
+		}
+
+		for(int w = 0; w < workers; w++) {
+			flame.merge(join(partials.get(w)));
+		}
+
+		return flame.build();
+	}
+
+	/*
+	 * Waits for a worker and gives back its result, its partial accumulator for instance
+	 */
+	static <T> T join(Future<T> partial) {
+		try {
+			return partial.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The computation has been interrupted", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/*
+	 * Number of chunks needed to do the given number of iterations
+	 */
+	static long chunkCount(long iterations) {
+		return (iterations + CHUNK_ITERATIONS - 1) / CHUNK_ITERATIONS;
+	}
+
+	/*
+	 * Runs the chunks picked from the shared counter until there isn't any left or until the control stops the computation.
+	 * Each chunk is an orbit starting from the origin, with its own random stream. Up to lanes chunks are run together.
+	 */
+	private void accumulate(PointAccumulator flame, long seed, long iterations, AtomicLong nextChunk, int lanes, FlameRenderControl control) {
+		long chunks = chunkCount(iterations);
+		FlameRandom[] rands = new FlameRandom[lanes];
+		double[][] orbits = new double[lanes][3]; // x, y and color index of the point of each orbit
+		long[] remaining = new long[lanes];
+
+		while(true) {
+			int active = 0;
+
+			for(long k; active < lanes && (k = nextChunk.getAndIncrement()) < chunks; active++) {
+				remaining[active] = Math.min(CHUNK_ITERATIONS, iterations - k * CHUNK_ITERATIONS);
+				rands[active] = FlameRandom.forChunk(seed, k);
+
+				orbits[active][0] = orbits[active][1] = orbits[active][2] = 0;
+				kernel.warmUp(rands[active], orbits[active]); // Doing 20 iterations as demanded in the assignement
+			}
+
+			if(active == 0) return;
+
+			/* Only the last chunk can be shorter, the orbits are advanced together as long as they all go on */
+			long common = remaining[0];
+			for(int l = 1; l < active; l++) {
+				common = Math.min(common, remaining[l]);
+			}
+
+			if(!advance(flame, rands, orbits, active, common, control)) return;
+
+			for(int l = 0; l < active; l++) {
+				if(remaining[l] > common && !advance(flame, new FlameRandom[] {rands[l]}, new double[][] {orbits[l]}, 1, remaining[l] - common, control)) return;
+			}
+		}
+	}
+
+	/*
+	 * Advances the given orbits together, checking the control between two slices of iterations.
+	 * Gives back false if the control has stopped the computation.
+	 */
+	private boolean advance(PointAccumulator flame, FlameRandom[] rands, double[][] orbits, int lanes, long iterations, FlameRenderControl control) {
+		if(control == null) {
+			kernel.iterate(flame, rands, orbits, lanes, iterations);
+			return true;
+		}
+
+		while(iterations > 0) {
+			if(control.stopRequested()) return false;
+
+			long step = Math.min(iterations, Math.max(1, FlameRenderControl.SLICE_ITERATIONS / lanes));
+			kernel.iterate(flame, rands, orbits, lanes, step);
+			control.advance(step * lanes);
+			iterations -= step;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Method that determines the color index of a transformation from its index in the list
+	 */
+	private static double defaultColorIndex(int index) {
 		if(index == 0 || index == 1) return index;
 		else {
 			double pow2log2 = Math.pow(2, (int)Math.ceil(Math.log(index)/Math.log(2)));
@@ -176,6 +583,55 @@ public class Flame {
 			transformationList.set(index, newFlameTransformation.build());
 		}
 
+		/**
+		 * Weight getter
+		 * 
+		 * @param index The index of the transformation from witch we get the weight
+		 * @return The weight of the transformation
+		 */
+		public double weight(int index) {
+			checkIndex(index);
+			return (new FlameTransformation.Builder(transformationList.get(index))).weight();
+		}
+
+		/**
+		 * Weight setter
+		 * 
+		 * @param index The index of the transformation to modify
+		 * @param newWeight The new weight of the transformation
+		 */
+		public void setWeight(int index, double newWeight) {
+			checkIndex(index);
+			FlameTransformation.Builder newFlameTransformation = new FlameTransformation.Builder(transformationList.get(index));
+			newFlameTransformation.setWeight(newWeight);
+			transformationList.set(index, newFlameTransformation.build());
+		}
+
+		/**
+		 * Color index getter
+		 * 
+		 * @param index The index of the transformation from witch we get the color index
+		 * @return The overridden color index of the transformation, or NaN when it is given by its position
+		 */
+		public double colorIndex(int index) {
+			checkIndex(index);
+			return (new FlameTransformation.Builder(transformationList.get(index))).colorIndex();
+		}
+
+		/**
+		 * Color index setter
+		 * Overrides the color index given to a transformation by its position in the list
+		 * 
+		 * @param index The index of the transformation to modify
+		 * @param newColorIndex The new color index in [0,1], or NaN to use the one given by the position again
+		 */
+		public void setColorIndex(int index, double newColorIndex) {
+			checkIndex(index);
+			FlameTransformation.Builder newFlameTransformation = new FlameTransformation.Builder(transformationList.get(index));
+			newFlameTransformation.setColorIndex(newColorIndex);
+			transformationList.set(index, newFlameTransformation.build());
+		}
+
 		/**
 		 * Transformation remover
 		 * 
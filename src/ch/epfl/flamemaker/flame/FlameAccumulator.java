@@ -2,45 +2,80 @@
  * Flame accumulator class
  * Used to store all the points computed
  * 
+ * The points can be stored in N x N sub-cells per pixel (oversampling). Each sub-cell is then colorized
+ * on its own and the colors of the sub-cells of a pixel are averaged, which smooths the edges of the fractal.
+ * 
  * @author Sydney Hauke
  * @author David Resin
  */
 
 package ch.epfl.flamemaker.flame;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import ch.epfl.flamemaker.color.*;
 import ch.epfl.flamemaker.geometry2d.*;
 
-final public class FlameAccumulator {
-	private int[][] accumulator;
-    private double[][] colorIndexAccumulator;
+final public class FlameAccumulator implements FlameImage {
+    /*
+     * The color indexes are summed in fixed point, so that the sums don't depend on the
+     * order of the additions and partial accumulators can be merged exactly
+     */
+    static final double COLOR_INDEX_UNIT = 1L << 32;
+
+    /* Greatest number of sub-cells of an accumulator, as some JVMs can't allocate arrays of up to Integer.MAX_VALUE elements */
+    static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    private static final int MAGIC = 0x464c4d48; // "FLMH", beginning of the binary format
+    private static final int VERSION = 1;
+    private static final int COMPRESSED = 1; // Flag of the binary format
+    private static final int BLOCK_BYTES = 1 << 20; // Greatest block of the planes in the binary format
+    private static final int INTENSITY_TABLE_SIZE = 1 << 16; // Numbers of points whose intensity is looked up, the greater ones are computed
+
+    /* Number of points and sum of the color indexes of each cell (or sub-cell), row after row */
+    private final int[] accumulator;
+    private final long[] colorIndexAccumulator;
+    private final Rectangle frame;
     private final int width, height;
+    private final int subWidth;
+    private final int oversampling;
+    private final int maxPoints;
     private final double logMaxPoints;
+    private volatile double[] intensities; // Intensity of each number of points, computed when the accumulator is first colorized in bulk
 	
-	private FlameAccumulator(int[][] hitCount, double[][] colorIndexSum) {
-		width = hitCount[0].length; 
-        height = hitCount.length;
-		accumulator = new int[height][width];
-        colorIndexAccumulator = new double[height][width];
-        int max = 0;
-		
-        /*
-         * Copy of the two arrays. Could be done by the method clone()
-         * but we profit of the two loops to determine the maximum
-         * number of points in a box of the accumulator
-         */
-		for(int i = 0; i < height; i++) {
-			for(int j = 0; j < width; j++) {
-				accumulator[i][j] = hitCount[i][j];
-                this.colorIndexAccumulator[i][j] = colorIndexSum[i][j];
-                
-                if(accumulator[i][j] > max) {
-                    max = accumulator[i][j];
-                }
-			}
-		}
-
-        logMaxPoints = Math.log(max + 1);
+	/*
+	 * Takes the arrays of a builder, which doesn't use them anymore : nothing is copied
+	 */
+	private FlameAccumulator(Rectangle frame, int[] hitCount, long[] colorIndexSum, int width, int height, int oversampling, int maxPoints) {
+		this.frame = frame;
+		this.oversampling = oversampling;
+		this.width = width;
+		this.height = height;
+		subWidth = width * oversampling;
+		accumulator = hitCount;
+		colorIndexAccumulator = colorIndexSum;
+		this.maxPoints = maxPoints;
+		logMaxPoints = Math.log(maxPoints + 1);
 	}
 	
 	/**
@@ -61,51 +96,555 @@ final public class FlameAccumulator {
 		return height;
 	}
 	
+	/**
+	 * Frame getter
+	 * 
+	 * @return The part of the plan stored in the accumulator
+	 */
+	public Rectangle frame() {
+		return frame;
+	}
+	
+	/**
+	 * Oversampling getter
+	 * 
+	 * @return The number of sub-cells per pixel in each direction
+	 */
+	public int oversampling() {
+		return oversampling;
+	}
+	
 	/**
 	 * Gets the intensity of a pixel at coordinates (x,y)
 	 * 
 	 * @param x The x coordinate of the accumulator
 	 * @param y The y coordinate of the accumulator
-	 * @return The intensity of a pixel of the fractal
+	 * @return The intensity of a pixel of the fractal, averaged over its sub-cells
 	 */
 	public double intensity(int x, int y) {
-        if(x < 0 || x > width || y < 0 || y > height) {
+        if(x < 0 || x >= width || y < 0 || y >= height) {
            throw new IndexOutOfBoundsException();
         } 
 		
-        return (Math.log(accumulator[y][x] + 1)/logMaxPoints); // applying a log to smooth the contrast of the image
+        if(oversampling == 1) {
+            return subIntensity(y, x);
+        }
+        
+        double intensity = 0;
+        
+        for(int i = y * oversampling; i < (y + 1) * oversampling; i++) {
+            for(int j = x * oversampling; j < (x + 1) * oversampling; j++) {
+                intensity += subIntensity(i, j);
+            }
+        }
+        
+        return intensity / (oversampling * oversampling);
+	}
+	
+	/*
+	 * Intensity of the sub-cell at row i and column j
+	 */
+	private double subIntensity(int i, int j) {
+        return (Math.log(accumulator[i * subWidth + j] + 1)/logMaxPoints); // applying a log to smooth the contrast of the image
 	}
 	
 	/**
-	 * @param palette
-	 * @param background
-	 * @param x
-	 * @param y
-	 * @return
-	 * @throws IndexOutOfBoundsException
+	 * Gets the color of a pixel at coordinates (x,y). When the accumulator is oversampled,
+	 * it is the average of the colors of the sub-cells of the pixel.
+	 * 
+	 * @param palette The palette giving the color of the color indexes
+	 * @param background The color of the pixels without any point
+	 * @param x The x coordinate of the accumulator
+	 * @param y The y coordinate of the accumulator
+	 * @return The color of the pixel
+	 * @throws IndexOutOfBoundsException When (x,y) isn't in the accumulator
 	 */
 	public Color color(Palette palette, Color background, int x, int y) throws IndexOutOfBoundsException {
-        if(x < 0 || x > width || y < 0 || y > height) {
+        if(x < 0 || x >= width || y < 0 || y >= height) {
             throw new IndexOutOfBoundsException();
         }
         
-        if(colorIndexAccumulator[y][x] != 0) {
-            Color properColor = palette.colorForIndex(colorIndexAccumulator[y][x]/accumulator[y][x]);
-            double intensity = intensity(x, y);
+        if(oversampling == 1) {
+            return subColor(palette, background, y, x);
+        }
+        
+        double r = 0, g = 0, b = 0;
+        
+        /* Box filter over the sub-cells of the pixel */
+        for(int i = y * oversampling; i < (y + 1) * oversampling; i++) {
+            for(int j = x * oversampling; j < (x + 1) * oversampling; j++) {
+                Color color = subColor(palette, background, i, j);
+                r += color.red();
+                g += color.green();
+                b += color.blue();
+            }
+        }
+        
+        int n = oversampling * oversampling;
+        return new Color(Math.min(1, r / n), Math.min(1, g / n), Math.min(1, b / n)); // Rounding could go a bit over 1
+    }
+	
+	/*
+	 * Color of the sub-cell at row i and column j
+	 */
+	private Color subColor(Palette palette, Color background, int i, int j) {
+        int cell = i * subWidth + j;
+        
+        if(colorIndexAccumulator[cell] != 0) {
+            Color properColor = palette.colorForIndex(colorIndexAccumulator[cell]/(COLOR_INDEX_UNIT * accumulator[cell]));
+            double intensity = subIntensity(i, j);
             return background.mixWith(properColor, intensity);
         }
         else return background;
-    }
+	}
+
+	/**
+	 * Colorizes the rows [from, to[ of the accumulator, counted from the top, into packed RGB values as the ones
+	 * of Color.asPackedRGB, without creating any color. The colors are the ones of color(...) averaged in the same way,
+	 * except that the color indexes are given the color of the nearest entry of the baked palette. The levels can then
+	 * differ from the ones of color(...).asPackedRGB(), by one at most with the plain sRGB tone map and a palette
+	 * within the bound of BakedPalette : the exact colors need color(...).
+	 * 
+	 * @param palette The baked palette giving the color of the color indexes
+	 * @param background The color of the pixels without any point
+	 * @param toneMap The tone map encoding the components, whose greatest level is 255
+	 * @param from The first row to colorize
+	 * @param to The row after the last one to colorize
+	 * @param rgb The buffer receiving the pixels, row after row
+	 * @param offset The index in the buffer of the first pixel of the row from
+	 * @throws IndexOutOfBoundsException When the rows aren't in the accumulator or when they don't fit in the buffer
+	 * @throws IllegalArgumentException When the greatest level of the tone map isn't 255
+	 */
+	public void colorize(BakedPalette palette, Color background, ToneMap toneMap, int from, int to, int[] rgb, int offset) {
+        if(from < 0 || to > height || from > to || offset < 0 || offset + (long)(to - from) * width > rgb.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        
+        if(toneMap.max() != 255) {
+            throw new IllegalArgumentException("The tone map must have 255 levels");
+        }
+        
+        double[] intensities = intensities();
+        double backgroundRed = background.red(), backgroundGreen = background.green(), backgroundBlue = background.blue();
+        int n = oversampling * oversampling;
+        int k = offset;
+        
+        for(int row = from; row < to; row++) {
+            int y = height - 1 - row;
+            
+            for(int x = 0; x < width; x++) {
+                double r = 0, g = 0, b = 0;
+                
+                /* Box filter over the sub-cells of the pixel, a single one without oversampling */
+                for(int i = y * oversampling; i < (y + 1) * oversampling; i++) {
+                    for(int cell = i * subWidth + x * oversampling, end = cell + oversampling; cell < end; cell++) {
+                        long colorIndexSum = colorIndexAccumulator[cell];
+                        
+                        if(colorIndexSum != 0) {
+                            int count = accumulator[cell];
+                            double intensity = count < intensities.length ? intensities[count] : Math.log(count + 1)/logMaxPoints;
+                            int entry = palette.entry(colorIndexSum/(COLOR_INDEX_UNIT * count));
+                            
+                            r += palette.red(entry) * intensity + backgroundRed * (1 - intensity);
+                            g += palette.green(entry) * intensity + backgroundGreen * (1 - intensity);
+                            b += palette.blue(entry) * intensity + backgroundBlue * (1 - intensity);
+                        }
+                        else {
+                            r += backgroundRed;
+                            g += backgroundGreen;
+                            b += backgroundBlue;
+                        }
+                    }
+                }
+                
+                if(n > 1) {
+                    r = Math.min(1, r / n);
+                    g = Math.min(1, g / n);
+                    b = Math.min(1, b / n);
+                }
+                
+                rgb[k++] = (toneMap.encode(r) << 16) | (toneMap.encode(g) << 8) | toneMap.encode(b);
+            }
+        }
+	}
+	
+	/**
+	 * Colorizes the whole accumulator into packed RGB values with several threads, each of them colorizing bands of rows.
+	 * The palette is baked first if it isn't already.
+	 * 
+	 * @param palette The palette giving the color of the color indexes
+	 * @param background The color of the pixels without any point
+	 * @param threads The number of threads colorizing the rows
+	 * @return The pixels row after row, the first row being the top of the fractal
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 * @see #colorize(BakedPalette, Color, ToneMap, int, int, int[], int)
+	 */
+	public int[] colorize(Palette palette, final Color background, int threads) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+        
+        final BakedPalette baked = BakedPalette.of(palette);
+        final ToneMap toneMap = ToneMap.sRGB(255);
+        final int[] rgb = new int[width * height];
+        
+        if(threads == 1) {
+            colorize(baked, background, toneMap, 0, height, rgb, 0);
+            return rgb;
+        }
+        
+        int rowsPerBand = Math.max(1, (height + 4 * threads - 1) / (4 * threads)); // A few bands per thread, in case some are slower
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        
+        try {
+            List<Future<Void>> bands = new ArrayList<Future<Void>>();
+            
+            for(int row = 0; row < height; row += rowsPerBand) {
+                final int from = row, to = Math.min(height, row + rowsPerBand);
+                
+                bands.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        colorize(baked, background, toneMap, from, to, rgb, from * width);
+                        return null;
+                    }
+                }));
+            }
+            
+            for(Future<Void> band : bands) {
+                Flame.join(band);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        
+        return rgb;
+	}
+	
+	/*
+	 * Intensities of the numbers of points up to the greatest one, or to the size of the table.
+	 * The threads computing the table at the same time compute the same one.
+	 */
+	private double[] intensities() {
+        double[] table = intensities;
+        
+        if(table == null) {
+            table = new double[Math.min(maxPoints, INTENSITY_TABLE_SIZE - 1) + 1];
+            
+            for(int count = 0; count < table.length; count++) {
+                table[count] = Math.log(count + 1)/logMaxPoints;
+            }
+            
+            intensities = table;
+        }
+        
+        return table;
+	}
+
+	/**
+	 * Adds up accumulators of the same frame, size and oversampling, computed for instance
+	 * with different seeds by different processes. The sums are exact, so the order doesn't matter.
+	 * 
+	 * @param accumulators The accumulators to add up
+	 * @return A new accumulator holding the points of all the given ones
+	 * @throws IllegalArgumentException When there isn't any accumulator or when they don't match
+	 * @throws ArithmeticException When a cell would get more points than an int holds
+	 */
+	public static FlameAccumulator merge(FlameAccumulator... accumulators) {
+		if(accumulators.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		FlameAccumulator first = accumulators[0];
+		int[] hitCount = new int[first.accumulator.length];
+		long[] colorIndexSum = new long[hitCount.length];
+		
+		for(FlameAccumulator that : accumulators) {
+			if(!first.matches(that)) {
+				throw new IllegalArgumentException("The accumulators don't have the same frame, size and oversampling");
+			}
+			
+			for(int k = 0; k < hitCount.length; k++) {
+				hitCount[k] = addExact(hitCount[k], that.accumulator[k]);
+				colorIndexSum[k] = addExact(colorIndexSum[k], that.colorIndexAccumulator[k]);
+			}
+		}
+		
+		return new FlameAccumulator(first.frame, hitCount, colorIndexSum, first.width, first.height, first.oversampling, max(hitCount));
+	}
+	
+	/*
+	 * Adds two numbers of points, failing instead of wrapping around (Math.addExact only comes with Java 8)
+	 */
+	private static int addExact(int a, int b) {
+		int sum = a + b;
+		
+		if(((a ^ sum) & (b ^ sum)) < 0) { // Both operands have the sign the sum lost
+			throw new ArithmeticException("Too many points in a cell");
+		}
+		
+		return sum;
+	}
+	
+	/*
+	 * Adds two sums of color indexes, failing instead of wrapping around
+	 */
+	private static long addExact(long a, long b) {
+		long sum = a + b;
+		
+		if(((a ^ sum) & (b ^ sum)) < 0) {
+			throw new ArithmeticException("Too many points in a cell");
+		}
+		
+		return sum;
+	}
+	
+	/*
+	 * Needed to check that two accumulators can be added up
+	 */
+	private boolean matches(FlameAccumulator that) {
+		return that.width == width && that.height == height && that.oversampling == oversampling && sameFrame(that.frame, frame);
+	}
+	
+	/*
+	 * Needed to compare frames, which don't redefine equals
+	 */
+	private static boolean sameFrame(Rectangle a, Rectangle b) {
+		return a.left() == b.left() && a.right() == b.right() && a.bottom() == b.bottom() && a.top() == b.top();
+	}
+	
+	/**
+	 * Number of sub-cells of an accumulator, checked before any plane is allocated
+	 * 
+	 * @param width The width of the accumulator
+	 * @param height The height of the accumulator
+	 * @param oversampling The number of sub-cells per pixel in each direction
+	 * @return The number of sub-cells
+	 * @throws IllegalArgumentException When a size isn't positive or when there are more than MAX_CELLS sub-cells
+	 */
+	static int cellCount(int width, int height, int oversampling) {
+		if(width <= 0 || height <= 0 || oversampling <= 0) {
+			throw new IllegalArgumentException();
+		}
+		
+		long subWidth = (long)width * oversampling, subHeight = (long)height * oversampling; // Both are less than 2^62
+		
+		if(subWidth > MAX_CELLS || subHeight > MAX_CELLS || subWidth * subHeight > MAX_CELLS) {
+			throw new IllegalArgumentException("The accumulator can't have more than " + MAX_CELLS + " sub-cells");
+		}
+		
+		return (int)(subWidth * subHeight);
+	}
+	
+	/*
+	 * Greatest of the given numbers of points
+	 */
+	private static int max(int[] hitCount) {
+		int max = 0;
+		
+		for(int count : hitCount) {
+			if(count > max) max = count;
+		}
+		
+		return max;
+	}
+	
+	/**
+	 * Writes the points of the accumulator in a binary format, which readFrom reads back.
+	 * Every number is big-endian :
+	 * 
+	 *   int     magic number 0x464c4d48 ("FLMH")
+	 *   int     version of the format, 1
+	 *   int     flags, 1 when the planes are compressed
+	 *   double  x and y of the center, width and height of the frame
+	 *   int     width, height and oversampling
+	 *   blocks  the planes
+	 * 
+	 * The planes are the number of points of each sub-cell (int) row after row, then the sum of their
+	 * color indexes in 32.32 fixed point (long) row after row. They are cut into blocks of at most 1 MB,
+	 * each of them made of its length, the length stored and the bytes stored, deflated with zlib when
+	 * compressed. As the lengths are known, several accumulators can follow each other in a stream.
+	 * The stream isn't closed.
+	 * 
+	 * @param out The stream to write to
+	 * @param compressed true to deflate the planes
+	 * @throws IOException When the stream can't be written
+	 */
+	public void writeTo(OutputStream out, boolean compressed) throws IOException {
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(compressed ? COMPRESSED : 0);
+		data.writeDouble(frame.center().x());
+		data.writeDouble(frame.center().y());
+		data.writeDouble(frame.width());
+		data.writeDouble(frame.height());
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeInt(oversampling);
+		
+		ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+		Deflater deflater = compressed ? new Deflater() : null;
+		
+		try {
+			for(int count : accumulator) {
+				if(block.remaining() < 4) writeBlock(data, block, deflater);
+				block.putInt(count);
+			}
+			
+			for(long sum : colorIndexAccumulator) {
+				if(block.remaining() < 8) writeBlock(data, block, deflater);
+				block.putLong(sum);
+			}
+			
+			writeBlock(data, block, deflater);
+		}
+		finally {
+			if(deflater != null) deflater.end();
+		}
+		
+		data.flush();
+	}
+	
+	/*
+	 * Writes a block of the planes, deflated when there is a deflater, and empties it
+	 */
+	private static void writeBlock(DataOutputStream data, ByteBuffer block, Deflater deflater) throws IOException {
+		data.writeInt(block.position());
+		
+		if(deflater == null) {
+			data.writeInt(block.position());
+			data.write(block.array(), 0, block.position());
+		}
+		else {
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream(block.position() / 2);
+			byte[] buffer = new byte[1 << 16];
+			
+			deflater.reset();
+			deflater.setInput(block.array(), 0, block.position());
+			deflater.finish();
+			
+			while(!deflater.finished()) {
+				deflated.write(buffer, 0, deflater.deflate(buffer));
+			}
+			
+			data.writeInt(deflated.size());
+			deflated.writeTo(data);
+		}
+		
+		block.clear();
+	}
+	
+	/**
+	 * Reads an accumulator written by writeTo. Only the bytes of the accumulator are read from the stream,
+	 * which isn't closed.
+	 * 
+	 * @param in The stream to read from
+	 * @return The accumulator read
+	 * @throws IOException When the stream can't be read, isn't an accumulator, is corrupted or has an unknown version
+	 */
+	public static FlameAccumulator readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		
+		if(data.readInt() != MAGIC) {
+			throw new IOException("Not a flame accumulator");
+		}
+		
+		int version = data.readInt();
+		if(version != VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		
+		boolean compressed = (data.readInt() & COMPRESSED) != 0;
+		Point center = new Point(data.readDouble(), data.readDouble());
+		Rectangle frame = new Rectangle(center, data.readDouble(), data.readDouble());
+		int width = data.readInt(), height = data.readInt(), oversampling = data.readInt();
+		int cells;
+		
+		try {
+			cells = cellCount(width, height, oversampling);
+		}
+		catch(IllegalArgumentException e) {
+			throw new IOException("Invalid size " + width + " x " + height + " x " + oversampling, e);
+		}
+		
+		// The planes grow as the blocks are read : a header declaring a huge size doesn't allocate anything
+		int[] hitCount = new int[Math.min(cells, BLOCK_BYTES / 4)];
+		long[] colorIndexSum = new long[Math.min(cells, BLOCK_BYTES / 8)];
+		ByteBuffer block = ByteBuffer.allocate(0);
+		Inflater inflater = compressed ? new Inflater() : null;
+		
+		try {
+			for(int k = 0; k < cells; k++) {
+				if(!block.hasRemaining()) block = readBlock(data, inflater);
+				if(k == hitCount.length) hitCount = Arrays.copyOf(hitCount, (int)Math.min(cells, 2L * k));
+				hitCount[k] = block.getInt();
+			}
+			
+			for(int k = 0; k < cells; k++) {
+				if(!block.hasRemaining()) block = readBlock(data, inflater);
+				if(k == colorIndexSum.length) colorIndexSum = Arrays.copyOf(colorIndexSum, (int)Math.min(cells, 2L * k));
+				colorIndexSum[k] = block.getLong();
+			}
+		}
+		catch(BufferUnderflowException e) {
+			throw new IOException("Corrupted planes", e);
+		}
+		finally {
+			if(inflater != null) inflater.end();
+		}
+		
+		return new FlameAccumulator(frame, hitCount, colorIndexSum, width, height, oversampling, max(hitCount));
+	}
+	
+	/*
+	 * Reads a block of the planes, inflated when there is an inflater. The length stored is checked before
+	 * allocating anything : deflating never gives more than the bound of zlib's compressBound.
+	 */
+	private static ByteBuffer readBlock(DataInputStream data, Inflater inflater) throws IOException {
+		int length = data.readInt(), stored = data.readInt();
+		int maxStored = inflater == null ? length : length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+		
+		if(length <= 0 || length > BLOCK_BYTES || stored <= 0 || stored > maxStored) {
+			throw new IOException("Corrupted block");
+		}
+		
+		byte[] bytes = new byte[stored];
+		data.readFully(bytes);
+		
+		if(inflater == null) return ByteBuffer.wrap(bytes);
+		
+		byte[] inflated = new byte[length];
+		inflater.reset();
+		inflater.setInput(bytes);
+		
+		try {
+			if(inflater.inflate(inflated) != length || !inflater.finished()) {
+				throw new IOException("Corrupted block");
+			}
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupted block", e);
+		}
+		
+		return ByteBuffer.wrap(inflated);
+	}
 
 	/**
      * Builder class
      * Needed to build a FlameAccumulator by incrementation. It makes it temporary mutable but guarantees the OO encapsulation.
+     * 
+     * The cells are stored row after row in flat arrays. build() hands these arrays over to the accumulator
+     * instead of copying them, the builder can't be used anymore after it.
      */
-    final public static class Builder {
-        private int[][] accumulator;
-        private double[][] colorIndexAccumulator;
-        private Rectangle frame;
-        private AffineTransformation scale, translate;
+    final public static class Builder implements PointAccumulator {
+        private int[] accumulator;
+        private long[] colorIndexAccumulator;
+        private final Rectangle frame;
+        private final int width, height, oversampling;
+        private final int subWidth, subHeight;
+        private final CellMapping mapping;
+        private int maxPoints; // Greatest number of points of a cell, kept up to date by hit and merge
 
         /**
          * @param frame The frame where all points that are contained by him are stored
@@ -113,19 +652,129 @@ final public class FlameAccumulator {
          * @param height The height of the accumulator (or the "image)
          */
         public Builder(Rectangle frame, int width, int height) {
-            if(width <= 0 || height <= 0) {
-                throw new IllegalArgumentException();
-            }
+            this(frame, width, height, 1);
+        }
+
+        /**
+         * @param frame The frame where all points that are contained by him are stored
+         * @param width The width of the accumulator (or the "image")
+         * @param height The height of the accumulator (or the "image)
+         * @param oversampling The number of sub-cells per pixel in each direction, 1 for no oversampling
+         * @throws IllegalArgumentException When a size isn't positive or when there are more than MAX_CELLS sub-cells
+         */
+        public Builder(Rectangle frame, int width, int height, int oversampling) {
+            int cells = cellCount(width, height, oversampling);
             
             this.frame = frame;
-            accumulator = new int[height][width];
-            colorIndexAccumulator = new double[height][width];
+            this.width = width;
+            this.height = height;
+            this.oversampling = oversampling;
+            subWidth = width * oversampling;
+            subHeight = height * oversampling;
+            accumulator = new int[cells];
+            colorIndexAccumulator = new long[cells];
+            mapping = new CellMapping(frame, subWidth, subHeight);
+        }
 
-            double scaleToAccumulatorX = (width/(frame.right()-frame.left()));
-            double scaleToAccumulatorY = (height/(frame.top()-frame.bottom()));
+        /**
+         * Width getter
+         * 
+         * @return The width of the accumulator, in pixels
+         */
+        public int width() {
+            return width;
+        }
 
-            scale = AffineTransformation.newScaling(scaleToAccumulatorX, scaleToAccumulatorY);
-            translate = AffineTransformation.newTranslation(-frame.left(), -frame.bottom());
+        /**
+         * Height getter
+         * 
+         * @return The height of the accumulator, in pixels
+         */
+        public int height() {
+            return height;
+        }
+
+        /**
+         * Builder holding the given points, read back from a checkpoint for instance
+         * 
+         * @param frame The frame where all points that are contained by him are stored
+         * @param width The width of the accumulator (or the "image")
+         * @param height The height of the accumulator (or the "image)
+         * @param oversampling The number of sub-cells per pixel in each direction, 1 for no oversampling
+         * @param hitCount The number of points of each sub-cell, row after row, used without copy
+         * @param colorIndexSum The fixed-point sum of the color indexes of each sub-cell, row after row, used without copy
+         * @throws IllegalArgumentException When the planes don't have the size of the accumulator
+         */
+        Builder(Rectangle frame, int width, int height, int oversampling, int[] hitCount, long[] colorIndexSum) {
+            this(frame, width, height, oversampling);
+
+            if(hitCount.length != accumulator.length || colorIndexSum.length != accumulator.length) {
+                throw new IllegalArgumentException();
+            }
+
+            accumulator = hitCount;
+            colorIndexAccumulator = colorIndexSum;
+            maxPoints = max(hitCount);
+        }
+
+        /**
+         * Frame getter
+         * 
+         * @return The part of the plan stored in the accumulator
+         */
+        Rectangle frame() {
+            return frame;
+        }
+
+        /**
+         * Oversampling getter
+         * 
+         * @return The number of sub-cells per pixel in each direction
+         */
+        int oversampling() {
+            return oversampling;
+        }
+
+        /**
+         * @return The number of points of each sub-cell, row after row. It isn't a copy and mustn't be modified
+         * @throws IllegalStateException When this builder has already been built
+         */
+        int[] hitCountPlane() {
+            checkNotBuilt();
+
+            return accumulator;
+        }
+
+        /**
+         * @return The fixed-point sum of the color indexes of each sub-cell, row after row. It isn't a copy and mustn't be modified
+         * @throws IllegalStateException When this builder has already been built
+         */
+        long[] colorIndexPlane() {
+            checkNotBuilt();
+
+            return colorIndexAccumulator;
+        }
+
+        /**
+         * @return An empty builder with the same frame, size and oversampling as this one
+         */
+        Builder emptyCopy() {
+            return new Builder(frame, width, height, oversampling);
+        }
+
+        /**
+         * @return A builder holding the same points as this one
+         * @throws IllegalStateException When this builder has already been built
+         */
+        Builder copy() {
+            checkNotBuilt();
+
+            Builder copy = emptyCopy();
+            System.arraycopy(accumulator, 0, copy.accumulator, 0, accumulator.length);
+            System.arraycopy(colorIndexAccumulator, 0, copy.colorIndexAccumulator, 0, colorIndexAccumulator.length);
+            copy.maxPoints = maxPoints;
+
+            return copy;
         }
 
         /**
@@ -133,33 +782,260 @@ final public class FlameAccumulator {
          * 
          * @param p The point to store
          * @param colorIndex The point's color index
+         * @throws IllegalArgumentException When colorIndex isn't included in [0,1]
+         * @throws IllegalStateException When this builder has already been built
          */
         public void hit(Point p, double colorIndex) {
             if(colorIndex < 0 || colorIndex > 1) {
                 throw new IllegalArgumentException();
             }
 
-            Point displacedPoint;
-            int x, y;
+            hit(p.x(), p.y(), colorIndex);
+        }
+
+        /**
+         * Same as hit(Point, double), without creating any point.
+         * The color index is only checked when the assertions are enabled (java -ea), as this method is
+         * called for each point of the computation.
+         * 
+         * @param x The x coordinate of the point to store
+         * @param y The y coordinate of the point to store
+         * @param colorIndex The point's color index, in [0,1]
+         * @throws IllegalStateException When this builder has already been built
+         */
+        public void hit(double x, double y, double colorIndex) {
+            assert colorIndex >= 0 && colorIndex <= 1 : colorIndex;
+            checkNotBuilt();
+
+            /* Move the point and scales to the dimension of the accumulator */
+            int i = mapping.row(y);
+            int j = mapping.column(x);
+
+            if((i | j) >= 0) { // One of them is -1 when the point is out of the frame
+                int cell = i * subWidth + j;
+
+                int points = ++accumulator[cell]; //There is a new point in this box
+                colorIndexAccumulator[cell] += (long)(colorIndex * COLOR_INDEX_UNIT + 0.5); // We do then the average after the computation of all points
+
+                if(points > maxPoints) maxPoints = points;
+            }
+        }
+
+        /**
+         * @return A copy of the number of points of each cell (or sub-cell), row after row
+         * @throws IllegalStateException When this builder has already been built
+         */
+        int[] hitCounts() {
+            checkNotBuilt();
+
+            return accumulator.clone();
+        }
+
+        /**
+         * Adds the points stored in another builder of the same size to this one
+         * 
+         * @param that The builder to add to this one
+         * @throws IllegalArgumentException When the two builders don't have the same size
+         * @throws IllegalStateException When one of the builders has already been built
+         * @throws ArithmeticException When a cell would get more points than an int holds
+         */
+        void merge(Builder that) {
+            if(that.width != width || that.height != height || that.oversampling != oversampling) {
+                throw new IllegalArgumentException();
+            }
+
+            checkNotBuilt();
+            that.checkNotBuilt();
 
-            if(frame.contains(p)) {
-            	/* Move the point and scales to the dimension of the accumulator */
-                displacedPoint = translate.transformPoint(p);
-                displacedPoint = scale.transformPoint(displacedPoint);
+            for(int k = 0; k < accumulator.length; k++) {
+                int points = accumulator[k] = addExact(accumulator[k], that.accumulator[k]);
+                colorIndexAccumulator[k] = addExact(colorIndexAccumulator[k], that.colorIndexAccumulator[k]);
 
-                x = (int)Math.floor(displacedPoint.x());
-                y = (int)Math.floor(displacedPoint.y());
+                if(points > maxPoints) maxPoints = points;
+            }
+        }
 
-                accumulator[y][x] += 1; //There is a new point in this box
-                colorIndexAccumulator[y][x] += colorIndex; // We do then the average after the computation of all points
+        /**
+         * Adds the points of an accumulator of the same frame and size to this builder
+         * 
+         * @param that The accumulator to add to this builder
+         * @throws IllegalArgumentException When the accumulator doesn't have the same frame and size
+         * @throws IllegalStateException When this builder has already been built
+         * @throws ArithmeticException When a cell would get more points than an int holds
+         */
+        void merge(FlameAccumulator that) {
+            if(that.width != width || that.height != height || that.oversampling != oversampling || !sameFrame(that.frame, frame)) {
+                throw new IllegalArgumentException();
+            }
+
+            checkNotBuilt();
+
+            for(int k = 0; k < accumulator.length; k++) {
+                int points = accumulator[k] = addExact(accumulator[k], that.accumulator[k]);
+                colorIndexAccumulator[k] = addExact(colorIndexAccumulator[k], that.colorIndexAccumulator[k]);
+
+                if(points > maxPoints) maxPoints = points;
             }
         }
 
         /**
+         * Adds the points stored in a shared builder of the same frame and size to this builder.
+         * The threads filling the shared builder must be done.
+         * 
+         * @param that The shared builder to add to this builder
+         * @throws IllegalArgumentException When the shared builder doesn't have the same frame and size
+         * @throws IllegalStateException When this builder has already been built
+         * @throws ArithmeticException When a cell would get more points than an int holds
+         */
+        void merge(ConcurrentBuilder that) {
+            if(that.width != width || that.height != height || that.oversampling != oversampling || !sameFrame(that.frame, frame)) {
+                throw new IllegalArgumentException();
+            }
+
+            checkNotBuilt();
+
+            for(int k = 0; k < accumulator.length; k++) {
+                int points = accumulator[k] = addExact(accumulator[k], that.accumulator.get(k));
+                colorIndexAccumulator[k] = addExact(colorIndexAccumulator[k], that.colorIndexAccumulator.get(k));
+
+                if(points > maxPoints) maxPoints = points;
+            }
+        }
+
+        /**
+         * Gives the points stored to a new immutable FlameAccumulator, without copying them.
+         * The builder can't be used anymore after it.
+         * 
          * @return A new immutable FlameAccumulator
+         * @throws IllegalStateException When this builder has already been built
          */
         public FlameAccumulator build() {
-            return new FlameAccumulator(accumulator, colorIndexAccumulator);
+            checkNotBuilt();
+
+            FlameAccumulator built = new FlameAccumulator(frame, accumulator, colorIndexAccumulator, width, height, oversampling, maxPoints);
+            accumulator = null; // Any later hit fails instead of changing the accumulator built
+            colorIndexAccumulator = null;
+
+            return built;
+        }
+
+        /**
+         * Needed to check that the arrays haven't been handed over to an accumulator
+         * 
+         * @throws IllegalStateException When this builder has already been built
+         */
+        void checkNotBuilt() {
+            if(accumulator == null) {
+                throw new IllegalStateException("The builder has already been built");
+            }
+        }
+    }
+
+    /**
+     * ConcurrentBuilder class
+     * Builder that all the threads of a computation fill at the same time, instead of each of them filling
+     * its own builder merged at the end. The memory needed doesn't grow with the number of threads, which
+     * matters for huge images, but the threads pay for atomic updates and share the cache lines of the cells.
+     * 
+     * As the color indexes are summed in fixed point, the additions are exact : the accumulator built is the
+     * same as the one of a Builder receiving the same points.
+     */
+    final public static class ConcurrentBuilder implements PointAccumulator {
+        private final AtomicIntegerArray accumulator;
+        private final AtomicLongArray colorIndexAccumulator;
+        private final Rectangle frame;
+        private final int width, height, oversampling;
+        private final int subWidth, subHeight;
+        private final CellMapping mapping;
+
+        /**
+         * @param frame The frame where all points that are contained by him are stored
+         * @param width The width of the accumulator (or the "image")
+         * @param height The height of the accumulator (or the "image)
+         */
+        public ConcurrentBuilder(Rectangle frame, int width, int height) {
+            this(frame, width, height, 1);
+        }
+
+        /**
+         * @param frame The frame where all points that are contained by him are stored
+         * @param width The width of the accumulator (or the "image")
+         * @param height The height of the accumulator (or the "image)
+         * @param oversampling The number of sub-cells per pixel in each direction, 1 for no oversampling
+         * @throws IllegalArgumentException When a size isn't positive or when there are more than MAX_CELLS sub-cells
+         */
+        public ConcurrentBuilder(Rectangle frame, int width, int height, int oversampling) {
+            int cells = cellCount(width, height, oversampling);
+
+            this.frame = frame;
+            this.width = width;
+            this.height = height;
+            this.oversampling = oversampling;
+            subWidth = width * oversampling;
+            subHeight = height * oversampling;
+            accumulator = new AtomicIntegerArray(cells);
+            colorIndexAccumulator = new AtomicLongArray(cells);
+            mapping = new CellMapping(frame, subWidth, subHeight);
+        }
+
+        /**
+         * Width getter
+         * 
+         * @return The width of the accumulator, in pixels
+         */
+        public int width() {
+            return width;
+        }
+
+        /**
+         * Height getter
+         * 
+         * @return The height of the accumulator, in pixels
+         */
+        public int height() {
+            return height;
+        }
+
+        /**
+         * Same as Builder.hit, safe to call from several threads at once
+         * 
+         * @param x The x coordinate of the point to store
+         * @param y The y coordinate of the point to store
+         * @param colorIndex The point's color index, in [0,1]
+         */
+        public void hit(double x, double y, double colorIndex) {
+            assert colorIndex >= 0 && colorIndex <= 1 : colorIndex;
+
+            int i = mapping.row(y);
+            int j = mapping.column(x);
+
+            if((i | j) >= 0) {
+                int cell = i * subWidth + j;
+
+                accumulator.incrementAndGet(cell);
+                colorIndexAccumulator.addAndGet(cell, (long)(colorIndex * COLOR_INDEX_UNIT + 0.5));
+            }
+        }
+
+        /**
+         * Copies the points stored into a new immutable FlameAccumulator. The builder can go on after it,
+         * but the points stored by other threads during the copy may or may not be part of the accumulator.
+         * 
+         * @return A new immutable FlameAccumulator
+         */
+        public FlameAccumulator build() {
+            int[] hitCount = new int[accumulator.length()];
+            long[] colorIndexSum = new long[hitCount.length];
+            int max = 0;
+
+            for(int k = 0; k < hitCount.length; k++) {
+                hitCount[k] = accumulator.get(k);
+                colorIndexSum[k] = colorIndexAccumulator.get(k);
+
+                if(hitCount[k] > max) max = hitCount[k];
+            }
+
+            return new FlameAccumulator(frame, hitCount, colorIndexSum, width, height, oversampling, max);
         }
     }
 }
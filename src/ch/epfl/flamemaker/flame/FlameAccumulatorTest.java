@@ -0,0 +1,263 @@
+/**
+ * FlameAccumulatorTest class
+ * Checks the binary format of the accumulators, its checks on corrupted streams, the merges,
+ * and the colorization in bulk against the one pixel per pixel.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class FlameAccumulatorTest {
+	private static final Rectangle FRAME = new Rectangle(new Point(-0.25, 0), 5, 4);
+	private static final Palette PALETTE = new InterpolatedPalette(Arrays.asList(Color.RED, Color.GREEN, Color.BLUE, Color.WHITE));
+
+	@Test
+	public void readsWhatItWrites() throws IOException {
+		for(int oversampling : new int[] {1, 3}) {
+			for(boolean compressed : new boolean[] {false, true}) {
+				FlameAccumulator accumulator = randomAccumulator(120, 90, oversampling, 100000, 2013);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				accumulator.writeTo(out, compressed);
+
+				FlameAccumulator read = FlameAccumulator.readFrom(new ByteArrayInputStream(out.toByteArray()));
+
+				assertEquals(accumulator.width(), read.width());
+				assertEquals(accumulator.height(), read.height());
+				assertEquals(accumulator.oversampling(), read.oversampling());
+				assertEquals(FRAME.center().x(), read.frame().center().x(), 0);
+				assertEquals(FRAME.width(), read.frame().width(), 0);
+				assertArrayEquals(planes(accumulator), planes(read));
+				assertEquals(accumulator.intensity(60, 45), read.intensity(60, 45), 0);
+			}
+		}
+	}
+
+	@Test
+	public void readsAccumulatorsFollowingEachOther() throws IOException {
+		FlameAccumulator first = randomAccumulator(700, 500, 1, 200000, 1); // More than one block per plane
+		FlameAccumulator second = randomAccumulator(30, 20, 2, 1000, 2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		first.writeTo(out, true);
+		second.writeTo(out, false);
+
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		assertArrayEquals(planes(first), planes(FlameAccumulator.readFrom(in)));
+		assertArrayEquals(planes(second), planes(FlameAccumulator.readFrom(in)));
+		assertEquals(0, in.available());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAnotherFormat() throws IOException {
+		FlameAccumulator.readFrom(new ByteArrayInputStream(new byte[] {'P', '6', '\n', '1', ' ', '1', '\n', '2', '5', '5', '\n', 0, 0, 0}));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsATruncatedStream() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		randomAccumulator(50, 40, 1, 1000, 3).writeTo(out, true);
+
+		FlameAccumulator.readFrom(new ByteArrayInputStream(Arrays.copyOf(out.toByteArray(), out.size() - 10)));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAHugeSize() throws IOException {
+		FlameAccumulator.readFrom(new ByteArrayInputStream(header(1 << 20, 1 << 20, 1, true)));
+	}
+
+	/* 46340 x 46340 is just below MAX_CELLS : the planes would take 25 GB */
+	@Test
+	public void rejectsAHeaderDeclaringMoreThanTheStreamHolds() throws IOException {
+		for(boolean compressed : new boolean[] {false, true}) {
+			ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+			truncated.write(header(46340, 46340, 1, compressed));
+			randomAccumulator(50, 40, 1, 1000, 3).writeTo(truncated, compressed); // Blocks of another size
+
+			for(byte[] stream : new byte[][] {header(46340, 46340, 1, compressed), truncated.toByteArray()}) {
+				try {
+					FlameAccumulator.readFrom(new ByteArrayInputStream(stream));
+					fail();
+				}
+				catch(IOException e) {
+					// Instead of an OutOfMemoryError
+				}
+			}
+		}
+	}
+
+	@Test
+	public void rejectsStoredLengthsPastTheBoundOfDeflate() throws IOException {
+		for(boolean compressed : new boolean[] {false, true}) {
+			for(int stored : new int[] {Integer.MAX_VALUE, 1 << 21, -1, 0}) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				out.write(header(1, 1, 1, compressed));
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(12); // One int and one long
+				data.writeInt(stored);
+				data.flush();
+
+				try {
+					FlameAccumulator.readFrom(new ByteArrayInputStream(out.toByteArray()));
+					fail("Stored length " + stored + " accepted");
+				}
+				catch(IOException e) {
+					assertEquals("Corrupted block", e.getMessage());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void mergesExactly() {
+		FlameAccumulator a = randomAccumulator(64, 48, 2, 50000, 4), b = randomAccumulator(64, 48, 2, 50000, 5);
+		FlameAccumulator.Builder builder = new FlameAccumulator.Builder(FRAME, 64, 48, 2);
+		builder.merge(a);
+		builder.merge(b);
+
+		assertArrayEquals(planes(FlameAccumulator.merge(a, b)), planes(builder.build()));
+		assertArrayEquals(planes(FlameAccumulator.merge(a, b)), planes(FlameAccumulator.merge(b, a)));
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void mergeFailsInsteadOfWrappingTheCounts() {
+		FlameAccumulator full = new FlameAccumulator.Builder(FRAME, 1, 1, 1, new int[] {Integer.MAX_VALUE}, new long[] {0}).build();
+		FlameAccumulator.merge(full, full);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void builderMergeFailsInsteadOfWrappingTheSums() {
+		FlameAccumulator full = new FlameAccumulator.Builder(FRAME, 1, 1, 1, new int[] {1}, new long[] {Long.MAX_VALUE}).build();
+		FlameAccumulator.Builder builder = new FlameAccumulator.Builder(FRAME, 1, 1, 1, new int[] {1}, new long[] {1});
+		builder.merge(full);
+	}
+
+	@Test
+	public void colorizeGivesTheColorsOfTheBakedPaletteExactly() {
+		BakedPalette baked = BakedPalette.of(PALETTE);
+		Color background = new Color(0.1, 0.2, 0.3);
+
+		for(int oversampling : new int[] {1, 2, 3}) {
+			FlameAccumulator accumulator = randomAccumulator(90, 70, oversampling, 300000, oversampling);
+			int[] rgb = new int[90 * 70];
+			accumulator.colorize(baked, background, ToneMap.sRGB(255), 0, 70, rgb, 0);
+
+			for(int row = 0; row < 70; row++) {
+				for(int x = 0; x < 90; x++) {
+					assertEquals(accumulator.color(baked, background, x, 69 - row).asPackedRGB(), rgb[row * 90 + x]);
+				}
+			}
+
+			assertArrayEquals(rgb, accumulator.colorize(PALETTE, background, 3));
+		}
+	}
+
+	/*
+	 * The dark palette puts black at 0.5, where most of the averaged indexes are : the sRGB encoding is the steepest
+	 * near black. The 40 alternating colors are the most the default resolution is documented for.
+	 */
+	@Test
+	public void colorizeDiffersByOneLevelAtMostFromTheOriginalPalette() {
+		List<Color> alternating = new ArrayList<Color>();
+		for(int k = 0; k < 40; k++) {
+			alternating.add(k % 2 == 0 ? Color.BLACK : Color.WHITE);
+		}
+
+		Palette dark = new InterpolatedPalette(Arrays.asList(new Color(0.02, 0, 0.05), Color.WHITE, Color.BLACK, Color.RED, new Color(0, 0.03, 0)));
+		Color background = Color.BLACK;
+		FlameAccumulator accumulator = randomAccumulator(90, 70, 1, 300000, 9); // Without oversampling averaging the errors out
+
+		for(Palette palette : new Palette[] {PALETTE, dark, new InterpolatedPalette(alternating)}) {
+			int[] rgb = accumulator.colorize(palette, background, 1);
+
+			for(int row = 0; row < 70; row++) {
+				for(int x = 0; x < 90; x++) {
+					int expected = accumulator.color(palette, background, x, 69 - row).asPackedRGB();
+
+					for(int shift = 0; shift < 24; shift += 8) {
+						assertTrue(Math.abs(((expected >> shift) & 0xff) - ((rgb[row * 90 + x] >> shift) & 0xff)) <= 1);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void colorizeComputesTheIntensitiesPastTheTable() {
+		int[] counts = {0, 1, 65535, 65536, 70000, 1 << 20};
+		long[] sums = new long[counts.length];
+
+		for(int k = 1; k < counts.length; k++) {
+			sums[k] = (long)(counts[k] * (k / 6.0) * FlameAccumulator.COLOR_INDEX_UNIT);
+		}
+
+		FlameAccumulator accumulator = new FlameAccumulator.Builder(FRAME, 3, 2, 1, counts, sums).build();
+		BakedPalette baked = BakedPalette.of(PALETTE);
+		int[] rgb = new int[6];
+		accumulator.colorize(baked, Color.WHITE, ToneMap.sRGB(255), 0, 2, rgb, 0);
+
+		for(int k = 0; k < 6; k++) {
+			assertEquals(accumulator.color(baked, Color.WHITE, k % 3, 1 - k / 3).asPackedRGB(), rgb[k]);
+		}
+	}
+
+	/* Hits random points, a tenth of them out of the frame */
+	private static FlameAccumulator randomAccumulator(int width, int height, int oversampling, int points, long seed) {
+		FlameAccumulator.Builder builder = new FlameAccumulator.Builder(FRAME, width, height, oversampling);
+		Random random = new Random(seed);
+
+		for(int k = 0; k < points; k++) {
+			builder.hit(FRAME.left() + (random.nextDouble() * 1.1 - 0.05) * FRAME.width(),
+					FRAME.bottom() + (random.nextDouble() * 1.1 - 0.05) * FRAME.height(), random.nextDouble());
+		}
+
+		return builder.build();
+	}
+
+	/* The planes of an accumulator, as written uncompressed */
+	private static byte[] planes(FlameAccumulator accumulator) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			accumulator.writeTo(out, false);
+			return out.toByteArray();
+		}
+		catch(IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/* The header of the binary format, as writeTo writes it */
+	private static byte[] header(int width, int height, int oversampling, boolean compressed) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(0x464c4d48);
+		data.writeInt(1);
+		data.writeInt(compressed ? 1 : 0);
+		data.writeDouble(FRAME.center().x());
+		data.writeDouble(FRAME.center().y());
+		data.writeDouble(FRAME.width());
+		data.writeDouble(FRAME.height());
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeInt(oversampling);
+		data.flush();
+
+		return out.toByteArray();
+	}
+}
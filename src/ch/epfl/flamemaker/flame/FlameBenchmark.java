@@ -0,0 +1,301 @@
+/**
+ * Benchmarks of the chaos algorithm
+ * Measures the hot paths of the computation of a flame and prints their cost.
+ * Each measure is repeated after a warm-up, so that the JIT has compiled the code measured.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class FlameBenchmark {
+	private static final int ROUNDS = 5;
+	private static final int CALLS = 5000000;
+	private static final long RENDER_ITERATIONS = 1 << 24;
+
+	/* Keeps the JIT from removing the computations measured */
+	private static double sink;
+
+	public static void main(String[] args) {
+		AffineTransformation affine = new AffineTransformation(0.4810169, 0, 1, 0, 0.4810169, 0.9);
+
+		System.out.println("Variation dispatch (ns per transformPoint)");
+		dispatch("linear", new FlameTransformation(affine, new double[] {1, 0, 0, 0, 0, 0}));
+		dispatch("linear + sinusoidal", new FlameTransformation(affine, new double[] {1, 0.1, 0, 0, 0, 0}));
+		dispatch("horseshoe + bubble", new FlameTransformation(affine, new double[] {0, 0, 0, 0, 0.8, 1}));
+
+		System.out.println("Accumulator hit (ns per point)");
+		hit();
+
+		System.out.println("Shared and private accumulators (ms per million iterations)");
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int size : new int[] {500, 2000, 6000}) {
+			for(int threads : new int[] {1, 2, 4, cores}) {
+				if(threads == cores && (cores == 1 || cores == 2 || cores == 4)) continue; // Already measured
+
+				accumulation(size, size * 4 / 5, threads);
+			}
+		}
+
+		System.out.println("Colorization (ns per pixel)");
+		for(int oversampling : new int[] {1, 2}) {
+			colorization(oversampling);
+		}
+	}
+
+	/*
+	 * Compares three ways of applying a transformation, in nanoseconds per call :
+	 * - generic : the previous dispatch, a virtual call per active variation through ALL_VARIATIONS, creating a point for each result
+	 * - slots : the same loop over the 6 slots skipping the zero weights, without creating anything
+	 * - compiled : the compiled form of the transformation as FlameKernel applies it, without creating anything
+	 * The gap between generic and slots is the cost of the points and of the virtual calls,
+	 * the one between slots and compiled the one of the loop over the slots and of the linear variation not folded.
+	 */
+	private static void dispatch(String name, final FlameTransformation transformation) {
+		final AffineTransformation affine = new FlameTransformation.Builder(transformation).affineTransformation();
+		final double[] coefficients = affine.coefficients();
+		final double[] weights = new double[6];
+		for(int i = 0; i < 6; i++) {
+			weights[i] = new FlameTransformation.Builder(transformation).variationWeight(i);
+		}
+
+		double generic = measure(new Runnable() {
+			public void run() {
+				Point p = Point.ORIGIN;
+				for(int m = 0; m < CALLS; m++) {
+					Point a = affine.transformPoint(p);
+					double x = 0, y = 0;
+					for(int i = 0; i < 6; i++) {
+						if(weights[i] == 0.0) continue;
+						Point r = Variation.ALL_VARIATIONS.get(i).transformPoint(a);
+						x += r.x() * weights[i];
+						y += r.y() * weights[i];
+					}
+					p = new Point(x, y);
+				}
+				sink += p.x();
+			}
+		});
+
+		double slots = measure(new Runnable() {
+			public void run() {
+				int[] indexes = {0, 1, 2, 3, 4, 5};
+				double[] xy = new double[2];
+				double x = 0, y = 0;
+				for(int m = 0; m < CALLS; m++) {
+					double ax = (coefficients[0] * x) + (coefficients[1] * y) + coefficients[2];
+					double ay = (coefficients[3] * x) + (coefficients[4] * y) + coefficients[5];
+					x = 0;
+					y = 0;
+					for(int i = 0; i < 6; i++) {
+						if(weights[i] == 0.0) continue;
+						Variation.transform(indexes, weights, i, i + 1, ax, ay, xy);
+						x += xy[0];
+						y += xy[1];
+					}
+				}
+				sink += x;
+			}
+		});
+
+		double compiled = measure(new Runnable() {
+			public void run() {
+				double[] a = transformation.affineCoefficients();
+				int[] indexes = transformation.activeVariations();
+				double[] activeWeights = transformation.activeWeights();
+				boolean linear = transformation.isLinear();
+				double[] xy = new double[2];
+				double x = 0, y = 0;
+				for(int m = 0; m < CALLS; m++) {
+					double ax = (a[0] * x) + (a[1] * y) + a[2];
+					double ay = (a[3] * x) + (a[4] * y) + a[5];
+					if(linear) {
+						x = ax;
+						y = ay;
+					}
+					else {
+						Variation.transform(indexes, activeWeights, 0, indexes.length, ax, ay, xy);
+						x = xy[0];
+						y = xy[1];
+					}
+				}
+				sink += x;
+			}
+		});
+
+		System.out.printf("  %-22s generic %6.1f   slots %6.1f   compiled %6.1f%n", name, generic, slots, compiled);
+	}
+
+	/*
+	 * Compares the storage of a point as it was done, with a validation, a translation and a scaling
+	 * followed by two Math.floor, with FlameAccumulator.Builder.hit, which finds the same cells through
+	 * CellMapping without branching and stores them in flat arrays.
+	 * A tenth of the points fall out of the frame.
+	 */
+	private static void hit() {
+		final Rectangle frame = new Rectangle(new Point(-0.25, 0), 5, 4);
+		final int width = 500, height = 400;
+		final double[] xs = new double[1 << 16], ys = new double[1 << 16], cs = new double[1 << 16];
+		Random random = new Random(2013);
+
+		for(int k = 0; k < xs.length; k++) {
+			xs[k] = frame.left() + (random.nextDouble() * 1.1 - 0.05) * frame.width();
+			ys[k] = frame.bottom() + (random.nextDouble() * 1.1 - 0.05) * frame.height();
+			cs[k] = random.nextDouble();
+		}
+
+		double previous = measure(new Runnable() {
+			public void run() {
+				int[][] counts = new int[height][width];
+				long[][] sums = new long[height][width];
+				double left = frame.left(), right = frame.right(), bottom = frame.bottom(), top = frame.top();
+				double scaleX = width / frame.width(), scaleY = height / frame.height();
+
+				for(int m = 0; m < CALLS; m++) {
+					int k = m & (xs.length - 1);
+					double x = xs[k], y = ys[k], c = cs[k];
+
+					if(c < 0 || c > 1) {
+						throw new IllegalArgumentException();
+					}
+
+					if(x >= left && x < right && y < top && y >= bottom) {
+						int i = (int)Math.floor((y - bottom) * scaleY);
+						int j = (int)Math.floor((x - left) * scaleX);
+
+						counts[i][j] += 1;
+						sums[i][j] += (long)(c * FlameAccumulator.COLOR_INDEX_UNIT + 0.5);
+					}
+				}
+				sink += counts[height / 2][width / 2];
+			}
+		});
+
+		double current = measure(new Runnable() {
+			public void run() {
+				FlameAccumulator.Builder builder = new FlameAccumulator.Builder(frame, width, height);
+
+				for(int m = 0; m < CALLS; m++) {
+					int k = m & (xs.length - 1);
+					builder.hit(xs[k], ys[k], cs[k]);
+				}
+				sink += builder.build().intensity(width / 2, height / 2);
+			}
+		});
+
+		System.out.printf("  %-22s previous %6.1f   builder %6.1f%n", "500 x 400", previous, current);
+	}
+
+	/*
+	 * Compares the private builders merged at the end with the shared concurrent builder. The density is about
+	 * RENDER_ITERATIONS iterations over the size of the image but at least one, so the largest image does more
+	 * iterations than the others (28.8M for 6000 x 4800) : the times are given per million iterations.
+	 * On a single core the threads only take turns, and the atomic updates of the shared builder are never contended.
+	 * Only measures on several cores can tell which of the two is faster with several threads.
+	 */
+	private static void accumulation(int width, int height, final int threads) {
+		final Flame flame = sharkFin();
+		final Rectangle frame = new Rectangle(new Point(-0.25, 0), 5, 4);
+		final int density = (int)Math.max(1, RENDER_ITERATIONS / ((long)width * height));
+		final int w = width, h = height;
+		double millions = (double)density * width * height / (1 << 20);
+
+		double merged = measureRender(new Runnable() {
+			public void run() {
+				sink += flame.compute(new FlameAccumulator.Builder(frame, w, h), density, Flame.DEFAULT_SEED, threads, null).intensity(w / 2, h / 2);
+			}
+		});
+
+		double shared = measureRender(new Runnable() {
+			public void run() {
+				sink += flame.compute(new FlameAccumulator.ConcurrentBuilder(frame, w, h), density, Flame.DEFAULT_SEED, threads, null).intensity(w / 2, h / 2);
+			}
+		});
+
+		System.out.printf("  %-22s private %7.1f   shared %7.1f%n", width + " x " + height + ", " + threads + " thr.", merged / millions, shared / millions);
+	}
+
+	/*
+	 * Compares the colorization pixel per pixel, creating colors, with the bulk one of a row band
+	 */
+	private static void colorization(int oversampling) {
+		final int width = 1000, height = 800;
+		final FlameAccumulator fractal = sharkFin().compute(new FlameAccumulator.Builder(new Rectangle(new Point(-0.25, 0), 5, 4), width, height, oversampling),
+				50, Flame.DEFAULT_SEED, 1, null);
+		final Palette palette = new InterpolatedPalette(Arrays.asList(Color.RED, Color.GREEN, Color.BLUE));
+		final BakedPalette baked = BakedPalette.of(palette);
+		final int[] rgb = new int[width * height];
+
+		double perPixel = measureRender(new Runnable() {
+			public void run() {
+				for(int row = 0; row < height; row++) {
+					for(int x = 0; x < width; x++) {
+						rgb[row * width + x] = fractal.color(palette, Color.BLACK, x, height - 1 - row).asPackedRGB();
+					}
+				}
+				sink += rgb[rgb.length / 2];
+			}
+		});
+
+		double bulk = measureRender(new Runnable() {
+			public void run() {
+				fractal.colorize(baked, Color.BLACK, ToneMap.sRGB(255), 0, height, rgb, 0);
+				sink += rgb[rgb.length / 2];
+			}
+		});
+
+		int pixels = width * height;
+		System.out.printf("  %-22s per pixel %6.1f   bulk %6.1f%n", width + " x " + height + ", " + oversampling + "x" + oversampling, perPixel * 1e6 / pixels, bulk * 1e6 / pixels);
+	}
+
+	/*
+	 * The shark fin of the assignement
+	 */
+	private static Flame sharkFin() {
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.4113504, -0.7124804, -0.4, 0.7124795, -0.4113508, 0.8), new double[] {1, 0.1, 0, 0, 0, 0}));
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.3957339, 0, -1.6, 0, -0.3957337, 0.2), new double[] {0, 0, 0, 0, 0.8, 1}));
+		transformations.add(new FlameTransformation(new AffineTransformation(0.4810169, 0, 1, 0, 0.4810169, 0.9), new double[] {1, 0, 0, 0, 0, 0}));
+
+		return new Flame(transformations);
+	}
+
+	/*
+	 * Runs the given render a few times and gives back the best time in milliseconds
+	 */
+	private static double measureRender(Runnable render) {
+		long best = Long.MAX_VALUE;
+
+		for(int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			render.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return best / 1e6;
+	}
+
+	/*
+	 * Runs the given code several times and gives back the best time per call in nanoseconds
+	 */
+	private static double measure(Runnable code) {
+		long best = Long.MAX_VALUE;
+
+		for(int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			code.run();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		return (double)best / CALLS;
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ * FlameFarm class
+ * Computes a flame on several worker processes of the same machine, each of them being a JVM with its own heap
+ * and garbage collector. The coordinator cuts the iterations into shards of chunks, sends them to the workers
+ * through their standard input and reads back their partial accumulators from their standard output, in the
+ * binary format of FlameAccumulator. The partial accumulators are added up as soon as they arrive.
+ *
+ * Each chunk has its own random stream derived from the seed, so the result is the same as Flame.compute
+ * with the same seed, whatever the number of workers. When a worker fails or doesn't send its accumulator
+ * back in time, it is killed and started again and its shard is given to a worker again, up to three times.
+ *
+ * Started with the argument "worker", this class is a worker. Started with a number of workers, it renders
+ * the shark fin with them.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public final class FlameFarm {
+	private static final int MAX_ATTEMPTS = 3; // Number of times a shard is given to a worker before giving up
+	private static final int SHARDS_PER_WORKER = 4; // Lets the fast workers take the shards of the slow ones
+	private static final long DEFAULT_SHARD_TIMEOUT = 10 * 60 * 1000; // Milliseconds a worker may take for a shard
+
+	private final int workers;
+	private final List<String> command;
+	private final long shardTimeout;
+
+	/**
+	 * FlameFarm constructor, whose workers are started with the java command and class path of this JVM
+	 *
+	 * @param workers The number of worker processes
+	 * @throws IllegalArgumentException When workers isn't a positive number
+	 */
+	public FlameFarm(int workers) {
+		this(workers, Arrays.asList(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+				"-cp", System.getProperty("java.class.path"), FlameFarm.class.getName(), "worker"));
+	}
+
+	/**
+	 * FlameFarm constructor
+	 *
+	 * @param workers The number of worker processes
+	 * @param command The command starting a worker, which must run FlameFarm with the argument "worker"
+	 * @throws IllegalArgumentException When workers isn't a positive number
+	 */
+	public FlameFarm(int workers, List<String> command) {
+		this(workers, command, DEFAULT_SHARD_TIMEOUT);
+	}
+
+	/**
+	 * FlameFarm constructor
+	 *
+	 * @param workers The number of worker processes
+	 * @param command The command starting a worker, which must run FlameFarm with the argument "worker"
+	 * @param shardTimeout The longest time a worker may take to send the accumulator of a shard back, in milliseconds,
+	 * including its start for the first shard. A worker late is killed and its shard given again.
+	 * @throws IllegalArgumentException When workers or shardTimeout isn't a positive number
+	 */
+	public FlameFarm(int workers, List<String> command, long shardTimeout) {
+		if(workers <= 0 || shardTimeout <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		this.workers = workers;
+		this.command = new ArrayList<String>(command);
+		this.shardTimeout = shardTimeout;
+	}
+
+	/**
+	 * Computes a fractal of type flame on the worker processes
+	 *
+	 * @param flame The flame to compute
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param density Affects the number of iterations. Gives a more fine image when it increases
+	 * @param seed The seed of the random transformation choices
+	 * @return A Flame accumulator that holds the entire "image" of the fractal
+	 * @throws IOException When a shard has failed on MAX_ATTEMPTS workers
+	 * @throws InterruptedException When the thread is interrupted while waiting for the workers
+	 */
+	public FlameAccumulator compute(final Flame flame, final Rectangle frame, final int width, final int height, int density, final long seed) throws IOException, InterruptedException {
+		final long iterations = (long)density * width * height;
+		final FlameAccumulator.Builder total = new FlameAccumulator.Builder(frame, width, height);
+		final ConcurrentLinkedQueue<Shard> shards = new ConcurrentLinkedQueue<Shard>();
+
+		long chunks = Flame.chunkCount(iterations);
+		long chunksPerShard = Math.max(1, chunks / (workers * SHARDS_PER_WORKER));
+		for(long first = 0; first < chunks; first += chunksPerShard) {
+			shards.add(new Shard(first, Math.min(chunks, first + chunksPerShard)));
+		}
+
+		int connections = Math.min(workers, shards.size());
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, connections));
+		final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(); // Kills the workers late
+		List<Future<Void>> coordinators = new ArrayList<Future<Void>>(connections);
+
+		try {
+			for(int w = 0; w < connections; w++) {
+				coordinators.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						coordinate(shards, flame, frame, width, height, iterations, seed, total, watchdog);
+						return null;
+					}
+				}));
+			}
+
+			for(Future<Void> coordinator : coordinators) {
+				try {
+					coordinator.get();
+				}
+				catch(ExecutionException e) {
+					shards.clear(); // The other workers stop after their shard
+					if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			watchdog.shutdownNow();
+		}
+
+		return total.build();
+	}
+
+	/*
+	 * Gives the shards to a worker process until there isn't any left, starting the worker again when it fails
+	 * or is late
+	 */
+	private void coordinate(ConcurrentLinkedQueue<Shard> shards, Flame flame, Rectangle frame, int width, int height,
+			long iterations, long seed, FlameAccumulator.Builder total, ScheduledExecutorService watchdog) throws IOException {
+		Worker worker = null;
+
+		try {
+			Shard shard;
+			while((shard = shards.poll()) != null) {
+				try {
+					if(worker == null) worker = new Worker(command);
+
+					FlameAccumulator partial = worker.compute(flame, frame, width, height, iterations, seed, shard, watchdog, shardTimeout);
+
+					synchronized(total) {
+						total.merge(partial);
+					}
+
+					if(worker.killed()) worker = null;
+				}
+				catch(IOException e) {
+					if(worker != null) worker.destroy();
+					worker = null;
+
+					if(++shard.attempts >= MAX_ATTEMPTS) {
+						throw new IOException("The chunks [" + shard.first + ", " + shard.end + "[ have failed " + MAX_ATTEMPTS + " times", e);
+					}
+
+					System.err.println("Worker en echec, nouvel essai des chunks [" + shard.first + ", " + shard.end + "[ (" + e + ")");
+					shards.add(shard);
+				}
+			}
+		}
+		finally {
+			if(worker != null) worker.close();
+		}
+	}
+
+	/*
+	 * Chunks [first, end[ of a computation, with the number of times they have failed
+	 */
+	private static final class Shard {
+		final long first, end;
+		int attempts;
+
+		Shard(long first, long end) {
+			this.first = first;
+			this.end = end;
+		}
+	}
+
+	/*
+	 * Worker process seen by the coordinator
+	 */
+	private static final class Worker {
+		private final Process process;
+		private final DataOutputStream in;
+		private final DataInputStream out;
+		private final AtomicBoolean killed = new AtomicBoolean(); // Set by the watchdog
+
+		Worker(List<String> command) throws IOException {
+			process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			in = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			out = new DataInputStream(new BufferedInputStream(process.getInputStream(), 1 << 16));
+		}
+
+		/*
+		 * Sends a shard to the worker and waits for its accumulator. When it hasn't come after the timeout, the
+		 * watchdog kills the worker, which closes its pipes : the read or the write in progress fails at once.
+		 */
+		FlameAccumulator compute(Flame flame, Rectangle frame, int width, int height, long iterations, long seed, Shard shard,
+				ScheduledExecutorService watchdog, long timeout) throws IOException {
+			ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+				public void run() {
+					killed.set(true);
+					process.destroy();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+
+			try {
+				writeFlame(in, flame);
+				in.writeDouble(frame.center().x());
+				in.writeDouble(frame.center().y());
+				in.writeDouble(frame.width());
+				in.writeDouble(frame.height());
+				in.writeInt(width);
+				in.writeInt(height);
+				in.writeLong(iterations);
+				in.writeLong(seed);
+				in.writeLong(shard.first);
+				in.writeLong(shard.end);
+				in.flush();
+
+				return FlameAccumulator.readFrom(out);
+			}
+			catch(IOException e) {
+				if(killed.get()) {
+					throw new IOException("The worker hasn't answered within " + timeout + " ms", e);
+				}
+
+				throw e;
+			}
+			finally {
+				deadline.cancel(false);
+			}
+		}
+
+		/*
+		 * Closing the input of the worker makes it stop
+		 */
+		void close() {
+			try {
+				in.close();
+				process.waitFor();
+			}
+			catch(IOException e) {
+				process.destroy();
+			}
+			catch(InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		void destroy() {
+			process.destroy();
+		}
+
+		/*
+		 * The watchdog may kill the worker just after its answer, it can't take another shard then
+		 */
+		boolean killed() {
+			return killed.get();
+		}
+	}
+
+	/*
+	 * Writes the transformations of a flame : affine coefficients, variation weights, weight and color index
+	 */
+	private static void writeFlame(DataOutputStream out, Flame flame) throws IOException {
+		Flame.Builder builder = new Flame.Builder(flame);
+		out.writeInt(builder.transformationCount());
+
+		for(int i = 0; i < builder.transformationCount(); i++) {
+			for(double coefficient : builder.affineTransformation(i).coefficients()) {
+				out.writeDouble(coefficient);
+			}
+
+			for(Variation variation : Variation.ALL_VARIATIONS) {
+				out.writeDouble(builder.variationWeight(i, variation));
+			}
+
+			out.writeDouble(builder.weight(i));
+			out.writeDouble(builder.colorIndex(i));
+		}
+	}
+
+	/*
+	 * Reads the flame written by writeFlame
+	 */
+	private static Flame readFlame(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>(count);
+
+		for(int i = 0; i < count; i++) {
+			double[] a = new double[6];
+			for(int k = 0; k < 6; k++) {
+				a[k] = in.readDouble();
+			}
+
+			double[] variationWeights = new double[Variation.ALL_VARIATIONS.size()];
+			for(int k = 0; k < variationWeights.length; k++) {
+				variationWeights[k] = in.readDouble();
+			}
+
+			FlameTransformation.Builder transformation = new FlameTransformation.Builder(
+					new FlameTransformation(new AffineTransformation(a[0], a[1], a[2], a[3], a[4], a[5]), variationWeights, in.readDouble()));
+			transformation.setColorIndex(in.readDouble());
+			transformations.add(transformation.build());
+		}
+
+		return new Flame(transformations);
+	}
+
+	/*
+	 * Work of a worker process : computes the shards read from the standard input and writes their accumulators
+	 * on the standard output, until the input is closed. Nothing else may be written on the standard output.
+	 */
+	private static void work() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		BufferedOutputStream out = new BufferedOutputStream(System.out, 1 << 16);
+
+		while(true) {
+			Flame flame;
+			try {
+				flame = readFlame(in);
+			}
+			catch(EOFException e) {
+				return; // The coordinator has no shard left
+			}
+
+			Point center = new Point(in.readDouble(), in.readDouble());
+			Rectangle frame = new Rectangle(center, in.readDouble(), in.readDouble());
+			FlameAccumulator.Builder accumulator = new FlameAccumulator.Builder(frame, in.readInt(), in.readInt());
+			long iterations = in.readLong(), seed = in.readLong(), first = in.readLong(), end = in.readLong();
+
+			flame.computeChunks(accumulator, iterations, seed, first, end);
+			accumulator.build().writeTo(out, false); // Pipes are fast enough to not compress
+			out.flush();
+		}
+	}
+
+	/**
+	 * Runs a worker with the argument "worker", otherwise renders the shark fin with the given number of workers
+	 *
+	 * @param args "worker", or the number of workers
+	 */
+	public static void main(String[] args) {
+		if(args.length > 0 && args[0].equals("worker")) {
+			try {
+				work();
+			}
+			catch(IOException e) {
+				System.err.println("Worker interrompu : " + e.getMessage());
+				System.exit(1);
+			}
+
+			return;
+		}
+
+		int workers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.4113504, -0.7124804, -0.4, 0.7124795, -0.4113508, 0.8), new double[] {1, 0.1, 0, 0, 0, 0}));
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.3957339, 0, -1.6, 0, -0.3957337, 0.2), new double[] {0, 0, 0, 0, 0.8, 1}));
+		transformations.add(new FlameTransformation(new AffineTransformation(0.4810169, 0, 1, 0, 0.4810169, 0.9), new double[] {1, 0, 0, 0, 0, 0}));
+
+		List<Color> colors = Arrays.asList(Color.RED, Color.GREEN, Color.BLUE);
+
+		FlameAccumulator fractal;
+
+		try {
+			long start = System.nanoTime();
+			fractal = new FlameFarm(workers).compute(new Flame(transformations), new Rectangle(new Point(-0.25, 0), 5, 4), 500, 400, 50, Flame.DEFAULT_SEED);
+			System.out.println("Calcul sur " + workers + " workers en " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		catch(IOException e) {
+			System.out.println("Calcul impossible : " + e.getMessage());
+			return;
+		}
+		catch(InterruptedException e) {
+			System.out.println("Calcul interrompu");
+			return;
+		}
+
+		try {
+			FlamePPMMaker.generateImage("shark-fin.ppm", fractal, new InterpolatedPalette(colors));
+		}
+		catch(IOException e) {
+			System.out.println("Ecriture impossible : " + e.getMessage());
+		}
+		catch(InterruptedException e) {
+			System.out.println("Ecriture interrompue");
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * FlameImage interface
+ * Image of a computed flame, colorized pixel by pixel
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import ch.epfl.flamemaker.color.*;
+
+public interface FlameImage {
+	/**
+	 * @return The width of the image
+	 */
+	public int width();
+
+	/**
+	 * @return The height of the image
+	 */
+	public int height();
+
+	/**
+	 * Gets the color of a pixel at coordinates (x,y)
+	 *
+	 * @param palette The palette giving the color of the color indexes
+	 * @param background The color of the pixels without any point
+	 * @param x The x coordinate of the pixel
+	 * @param y The y coordinate of the pixel
+	 * @return The color of the pixel
+	 */
+	public Color color(Palette palette, Color background, int x, int y);
+}
@@ -0,0 +1,345 @@
+/**
+ * FlameImageWriter class
+ * Writes flame images in binary Netpbm formats : P6 with 8 or 16 bits per sample, and PAM with 16 bits per sample.
+ * The pixels are packed row after row into a reused buffer, which is written to a file channel once it is full,
+ * or colorized by several threads straight into a memory-mapped file.
+ * The 8-bit samples of a FlameAccumulator are colorized in bulk, without creating any color, when the palette is a
+ * BakedPalette, whose colors are approximated. Any other palette gives the exact colors, pixel per pixel.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ch.epfl.flamemaker.color.*;
+
+public final class FlameImageWriter {
+	private static final int BUFFER_BYTES = 1 << 16; // Rows are gathered until they fill this size before being written
+	private static final long BAND_BYTES = 1 << 24; // Greatest band of rows mapped by a thread of writeParallel
+
+	/**
+	 * Formats of the images
+	 */
+	public enum Format {
+		P6(255), // Binary PPM, 8 bits per sample
+		P6_16(65535), // Binary PPM, 16 bits per sample, most significant byte first
+		PAM_16(65535); // Portable arbitrary map of RGB tuples, 16 bits per sample, most significant byte first
+
+		private final int maxValue;
+
+		private Format(int maxValue) {
+			this.maxValue = maxValue;
+		}
+
+		/**
+		 * @return The greatest level of a sample
+		 */
+		public int maxValue() {
+			return maxValue;
+		}
+
+		/**
+		 * @return The number of bytes of a sample
+		 */
+		public int bytesPerSample() {
+			return maxValue > 255 ? 2 : 1;
+		}
+
+		/*
+		 * Header of an image of the given size
+		 */
+		private String header(int width, int height) {
+			if(this == PAM_16) {
+				return "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 3\nMAXVAL " + maxValue + "\nTUPLTYPE RGB\nENDHDR\n";
+			}
+
+			return "P6\n" + width + " " + height + "\n" + maxValue + "\n";
+		}
+	}
+
+	private FlameImageWriter() {}
+
+	/**
+	 * Writes an image, the first row being the top of the fractal
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param format The format of the image
+	 * @param image The finished fractal
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 */
+	public static long write(Path file, Format format, FlameImage image, Palette palette, Color background) throws IOException {
+		return write(file, format, image, palette, background, ToneMap.sRGB(format.maxValue));
+	}
+
+	/**
+	 * Writes an image, the first row being the top of the fractal, with the given tone map
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param format The format of the image
+	 * @param image The finished fractal
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param toneMap The tone map encoding the components, whose greatest level is the one of the format
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws IllegalArgumentException When the greatest level of the tone map isn't the one of the format
+	 */
+	public static long write(Path file, Format format, FlameImage image, Palette palette, Color background, ToneMap toneMap) throws IOException {
+		checkToneMap(format, toneMap);
+
+		int width = image.width(), height = image.height();
+		int rowBytes = 3 * width * format.bytesPerSample();
+		int rowsPerBuffer = Math.max(1, BUFFER_BYTES / rowBytes);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(rowsPerBuffer * rowBytes);
+		long written = 0;
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		try {
+			written += writeFully(channel, ByteBuffer.wrap(header(format, width, height)));
+
+			for(int row = 0; row < height; row += rowsPerBuffer) {
+				encodeRows(buffer, format, toneMap, image, palette, background, row, Math.min(height, row + rowsPerBuffer));
+				buffer.flip();
+				written += writeFully(channel, buffer);
+				buffer.clear();
+			}
+		}
+		finally {
+			channel.close();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Writes an image with several threads. The file is given its final size first, then the threads colorize
+	 * bands of rows straight into memory-mapped regions of the file, so that no buffer of the whole image is needed.
+	 * The image is read by all the threads at the same time : a FlameAccumulator can be, and so can a tiled one.
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param format The format of the image
+	 * @param image The finished fractal, which the threads read at the same time
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param threads The number of threads colorizing the rows
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws InterruptedException When the thread is interrupted while waiting for the bands
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public static long writeParallel(Path file, Format format, FlameImage image, Palette palette, Color background, int threads)
+			throws IOException, InterruptedException {
+		return writeParallel(file, format, image, palette, background, ToneMap.sRGB(format.maxValue), threads);
+	}
+
+	/**
+	 * Writes an image with several threads and the given tone map
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param format The format of the image
+	 * @param image The finished fractal, which the threads read at the same time
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param toneMap The tone map encoding the components, whose greatest level is the one of the format
+	 * @param threads The number of threads colorizing the rows
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws InterruptedException When the thread is interrupted while waiting for the bands
+	 * @throws IllegalArgumentException When threads isn't a positive number or when the tone map doesn't match the format
+	 * @see #writeParallel(Path, Format, FlameImage, Palette, Color, int)
+	 */
+	public static long writeParallel(Path file, Format format, FlameImage image, Palette palette, Color background, ToneMap toneMap, int threads)
+			throws IOException, InterruptedException {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			return writeParallel(file, format, image, palette, background, toneMap, executor, threads);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes an image with the threads of the given executor and the given tone map, for instance the ones
+	 * computing other images, so that writing doesn't add threads of its own
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param format The format of the image
+	 * @param image The finished fractal, which the threads read at the same time
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param toneMap The tone map encoding the components, whose greatest level is the one of the format
+	 * @param executor The executor colorizing the bands. It isn't shut down by this method
+	 * @param threads The number of threads of the executor to split the rows between
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws InterruptedException When the thread is interrupted while waiting for the bands
+	 * @throws IllegalArgumentException When threads isn't a positive number or when the tone map doesn't match the format
+	 * @see #writeParallel(Path, Format, FlameImage, Palette, Color, int)
+	 */
+	public static long writeParallel(Path file, final Format format, final FlameImage image, final Palette palette, final Color background, final ToneMap toneMap,
+			ExecutorService executor, int threads) throws IOException, InterruptedException {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		checkToneMap(format, toneMap);
+
+		final int width = image.width(), height = image.height();
+		final long rowBytes = 3L * width * format.bytesPerSample();
+		final int rowsPerBand = (int)Math.max(1, Math.min(BAND_BYTES / rowBytes, (height + threads - 1) / threads));
+		byte[] header = header(format, width, height);
+		final long total = header.length + rowBytes * height;
+
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		List<Future<Void>> bands = new ArrayList<Future<Void>>();
+
+		try {
+			writeFully(channel, ByteBuffer.wrap(header));
+			channel.write(ByteBuffer.wrap(new byte[1]), total - 1); // Sizes the file up front
+
+			for(int row = 0; row < height; row += rowsPerBand) {
+				final int from = row, to = Math.min(height, row + rowsPerBand);
+				final long position = header.length + rowBytes * from;
+
+				bands.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						MappedByteBuffer band = channel.map(FileChannel.MapMode.READ_WRITE, position, rowBytes * (to - from));
+						try {
+							encodeRows(band, format, toneMap, image, palette, background, from, to);
+						}
+						finally {
+							MappedBuffers.unmap(band); // Instead of keeping the band mapped until a garbage collection
+						}
+						return null;
+					}
+				}));
+			}
+
+			for(Future<Void> band : bands) {
+				try {
+					band.get();
+				}
+				catch(ExecutionException e) {
+					if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		}
+		finally {
+			for(Future<Void> band : bands) {
+				band.cancel(true); // Only the bands left when one of them has failed
+			}
+
+			channel.close();
+		}
+
+		return total;
+	}
+
+	/*
+	 * Header of an image of the given size
+	 */
+	private static byte[] header(Format format, int width, int height) {
+		return format.header(width, height).getBytes(Charset.forName("US-ASCII"));
+	}
+
+	/*
+	 * Needed to check that a tone map gives the levels of a format
+	 */
+	private static void checkToneMap(Format format, ToneMap toneMap) {
+		if(toneMap.max() != format.maxValue) {
+			throw new IllegalArgumentException("The tone map must have " + format.maxValue + " levels");
+		}
+	}
+
+	/**
+	 * Colorizes the rows [from, to[ of the image, counted from the top, into the buffer
+	 *
+	 * @param buffer The buffer receiving the samples, from its position
+	 * @param format The format giving the size of the samples
+	 * @param toneMap The tone map encoding the components, whose greatest level is the one of the format
+	 * @param image The finished fractal
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param from The first row to colorize
+	 * @param to The row after the last one to colorize
+	 */
+	static void encodeRows(ByteBuffer buffer, Format format, ToneMap toneMap, FlameImage image, Palette palette, Color background, int from, int to) {
+		int width = image.width(), height = image.height();
+
+		if(format.bytesPerSample() == 1 && image instanceof FlameAccumulator && palette instanceof BakedPalette) {
+			int[] rgb = new int[width];
+
+			for(int row = from; row < to; row++) {
+				((FlameAccumulator)image).colorize((BakedPalette)palette, background, toneMap, row, row + 1, rgb, 0);
+
+				for(int x = 0; x < width; x++) {
+					buffer.put((byte)(rgb[x] >> 16));
+					buffer.put((byte)(rgb[x] >> 8));
+					buffer.put((byte)rgb[x]);
+				}
+			}
+
+			return;
+		}
+
+		for(int row = from; row < to; row++) {
+			int y = height - 1 - row;
+
+			for(int x = 0; x < width; x++) {
+				Color color = image.color(palette, background, x, y);
+
+				if(format.bytesPerSample() == 1) {
+					buffer.put((byte)toneMap.encode(color.red()));
+					buffer.put((byte)toneMap.encode(color.green()));
+					buffer.put((byte)toneMap.encode(color.blue()));
+				}
+				else {
+					buffer.putShort((short)toneMap.encode(color.red()));
+					buffer.putShort((short)toneMap.encode(color.green()));
+					buffer.putShort((short)toneMap.encode(color.blue()));
+				}
+			}
+		}
+	}
+
+	/*
+	 * A channel can write less bytes than asked
+	 */
+	private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		int bytes = buffer.remaining();
+
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		return bytes;
+	}
+}
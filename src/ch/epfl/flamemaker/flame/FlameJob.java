@@ -0,0 +1,246 @@
+/**
+ * FlameJob class
+ * Description of an image to render : the flame, the part of the plan to save, the size, the density,
+ * the palette and the file to write. Jobs are read from a manifest, a text file of blocks like :
+ *
+ *   job shark-fin
+ *   output shark-fin.ppm
+ *   frame -0.25 0 5 4
+ *   size 500 400
+ *   density 50
+ *   palette 1 0 0, 0 1 0, 0 0 1
+ *   transformation -0.4113504 -0.7124804 -0.4 0.7124795 -0.4113508 0.8 | 1 0.1 0 0 0 0
+ *   transformation 0.4810169 0 1 0 0.4810169 0.9 | 1 0 0 0 0 0 | 2
+ *   end
+ *
+ * frame gives the center, the width and the height of the rectangle. palette is a list of colors
+ * separated by commas, or "random n". A transformation is made of the six coefficients of its affine
+ * transformation, its six variation weights and optionally its weight. Empty lines and lines starting
+ * with # are ignored.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public final class FlameJob {
+	private final String name, output;
+	private final Flame flame;
+	private final Rectangle frame;
+	private final int width, height, density;
+	private final Palette palette;
+
+	/**
+	 * FlameJob constructor
+	 *
+	 * @param name The name of the job
+	 * @param output The name of the file to write
+	 * @param flame The flame to render
+	 * @param frame The part of the plan to save in the image
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param density The density of the computation
+	 * @param palette The palette colorizing the image
+	 */
+	public FlameJob(String name, String output, Flame flame, Rectangle frame, int width, int height, int density, Palette palette) {
+		if(width <= 0 || height <= 0 || density <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		this.name = name;
+		this.output = output;
+		this.flame = flame;
+		this.frame = frame;
+		this.width = width;
+		this.height = height;
+		this.density = density;
+		this.palette = palette;
+	}
+
+	/**
+	 * @return The name of the job
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return The name of the file to write
+	 */
+	public String output() {
+		return output;
+	}
+
+	/**
+	 * @return The palette colorizing the image
+	 */
+	public Palette palette() {
+		return palette;
+	}
+
+	/**
+	 * Computes the flame of the job on the calling thread
+	 *
+	 * @return The accumulator of the image
+	 */
+	public FlameAccumulator compute() {
+		return flame.compute(frame, width, height, density);
+	}
+
+	/**
+	 * Reads the jobs of a manifest
+	 *
+	 * @param fileName The name of the manifest
+	 * @return The jobs of the manifest, in their order
+	 * @throws IOException When the manifest can't be read
+	 * @throws IllegalArgumentException When the manifest is malformed, with the number of the faulty line
+	 */
+	public static List<FlameJob> readManifest(String fileName) throws IOException {
+		List<FlameJob> jobs = new ArrayList<FlameJob>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+
+		try {
+			JobDescription job = null;
+			String line;
+			int lineNumber = 0;
+
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+
+				if(line.isEmpty() || line.startsWith("#")) continue;
+
+				String[] words = line.split("\\s+", 2);
+				String value = words.length > 1 ? words[1] : "";
+
+				try {
+					if(words[0].equals("job")) {
+						if(job != null) throw new IllegalArgumentException("Missing end");
+						job = new JobDescription(value);
+					}
+					else if(job == null) {
+						throw new IllegalArgumentException("Expected job");
+					}
+					else if(words[0].equals("end")) {
+						jobs.add(job.build());
+						job = null;
+					}
+					else {
+						job.set(words[0], value);
+					}
+				}
+				catch(IllegalArgumentException e) {
+					throw new IllegalArgumentException(fileName + ":" + lineNumber + ": " + e.getMessage(), e);
+				}
+			}
+
+			if(job != null) {
+				throw new IllegalArgumentException(fileName + ": missing end of job " + job.name);
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		return jobs;
+	}
+
+	/*
+	 * Job being read from a manifest
+	 */
+	private static class JobDescription {
+		private String name, output;
+		private Rectangle frame;
+		private int width, height, density;
+		private Palette palette;
+		private List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+
+		JobDescription(String name) {
+			this.name = name;
+			this.output = name + ".ppm";
+		}
+
+		void set(String key, String value) {
+			if(key.equals("output")) {
+				output = value;
+			}
+			else if(key.equals("frame")) {
+				double[] v = numbers(value, 4);
+				frame = new Rectangle(new Point(v[0], v[1]), v[2], v[3]);
+			}
+			else if(key.equals("size")) {
+				double[] v = numbers(value, 2);
+				width = (int)v[0];
+				height = (int)v[1];
+			}
+			else if(key.equals("density")) {
+				density = (int)numbers(value, 1)[0];
+			}
+			else if(key.equals("palette")) {
+				palette = palette(value);
+			}
+			else if(key.equals("transformation")) {
+				String[] parts = value.split("\\|");
+				if(parts.length < 2 || parts.length > 3) throw new IllegalArgumentException("Malformed transformation");
+
+				double[] a = numbers(parts[0], 6);
+				AffineTransformation affine = new AffineTransformation(a[0], a[1], a[2], a[3], a[4], a[5]);
+				double weight = parts.length == 3 ? numbers(parts[2], 1)[0] : 1;
+
+				transformations.add(new FlameTransformation(affine, numbers(parts[1], 6), weight));
+			}
+			else {
+				throw new IllegalArgumentException("Unknown key " + key);
+			}
+		}
+
+		FlameJob build() {
+			if(frame == null || width <= 0 || height <= 0 || density <= 0 || palette == null || transformations.isEmpty()) {
+				throw new IllegalArgumentException("Incomplete job " + name);
+			}
+
+			return new FlameJob(name, output, new Flame(transformations), frame, width, height, density, palette);
+		}
+
+		private static Palette palette(String value) {
+			String[] words = value.trim().split("\\s+");
+
+			if(words[0].equals("random")) {
+				return new RandomPalette((int)numbers(words.length > 1 ? words[1] : "", 1)[0]);
+			}
+
+			List<Color> colors = new ArrayList<Color>();
+			for(String color : value.split(",")) {
+				double[] c = numbers(color, 3);
+				colors.add(new Color(c[0], c[1], c[2]));
+			}
+
+			return new InterpolatedPalette(colors);
+		}
+
+		private static double[] numbers(String value, int count) {
+			String[] words = value.trim().split("\\s+");
+
+			if(words.length != count) {
+				throw new IllegalArgumentException(count + " numbers expected in \"" + value.trim() + "\"");
+			}
+
+			double[] numbers = new double[count];
+			for(int i = 0; i < count; i++) {
+				numbers[i] = Double.parseDouble(words[i]); // NumberFormatException is an IllegalArgumentException
+			}
+
+			return numbers;
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * FlameKernel class
+ * Compiled form of a flame, used by the chaos algorithm.
+ * The transformations are packed into arrays of primitive values, so that an iteration
+ * neither allocates objects nor computes the polar coordinates of the points.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.util.List;
+
+final class FlameKernel {
+	private final int size;
+	private final double[] affine; // a, b, c, d, e, f of each transformation, one after the other
+	private final int[] variationStart; // The active variations of transformation i are at [variationStart[i], variationStart[i+1][
+	private final int[] variationIndex;
+	private final double[] variationWeight;
+	private final boolean[] linear; // The transformation is reduced to its affine coefficients
+	private final double[] halfColorIndex; // Half of the color index of each transformation, the other half is the previous color index
+	private final double[] aliasProbability; // Alias table of the weights of the transformations
+	private final int[] alias;
+
+	/**
+	 * FlameKernel constructor
+	 *
+	 * @param transformations The transformations of the flame
+	 * @param colorIndex The color index of each transformation
+	 */
+	FlameKernel(List<FlameTransformation> transformations, double[] colorIndex) {
+		size = transformations.size();
+		affine = new double[6 * size];
+		variationStart = new int[size + 1];
+		halfColorIndex = new double[size];
+
+		for(int i = 0; i < size; i++) {
+			halfColorIndex[i] = 0.5 * colorIndex[i];
+		}
+
+		linear = new boolean[size];
+
+		int active = 0;
+		double[] weights = new double[size];
+
+		for(int i = 0; i < size; i++) {
+			FlameTransformation transformation = transformations.get(i);
+			System.arraycopy(transformation.affineCoefficients(), 0, affine, 6 * i, 6);
+			weights[i] = (new FlameTransformation.Builder(transformation)).weight();
+			linear[i] = transformation.isLinear();
+			active += transformation.activeVariations().length;
+		}
+
+		variationIndex = new int[active];
+		variationWeight = new double[active];
+		active = 0;
+
+		/* The active variations of all the transformations, one after the other */
+		for(int i = 0; i < size; i++) {
+			int[] indexes = transformations.get(i).activeVariations();
+
+			variationStart[i] = active;
+			System.arraycopy(indexes, 0, variationIndex, active, indexes.length);
+			System.arraycopy(transformations.get(i).activeWeights(), 0, variationWeight, active, indexes.length);
+			active += indexes.length;
+		}
+
+		variationStart[size] = active;
+
+		aliasProbability = new double[size];
+		alias = new int[size];
+		buildAliasTable(weights, aliasProbability, alias);
+	}
+
+	/*
+	 * Builds the alias table of the given weights with the method of Vose.
+	 * Column i is kept with probability aliasProbability[i], otherwise alias[i] is chosen instead,
+	 * so that drawing a transformation only needs one random column and one comparison.
+	 * When all the weights are zero, the transformations are equally likely.
+	 */
+	static void buildAliasTable(double[] weights, double[] aliasProbability, int[] alias) {
+		int n = weights.length;
+		double sum = 0;
+
+		for(double w : weights) sum += w;
+
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int smallCount = 0, largeCount = 0;
+
+		for(int i = 0; i < n; i++) {
+			scaled[i] = sum > 0 ? weights[i] * n / sum : 1;
+
+			if(scaled[i] < 1) small[smallCount++] = i;
+			else large[largeCount++] = i;
+		}
+
+		while(smallCount > 0 && largeCount > 0) {
+			int s = small[--smallCount], l = large[--largeCount];
+
+			aliasProbability[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1; // The probability given to s is taken from l
+
+			if(scaled[l] < 1) small[smallCount++] = l;
+			else large[largeCount++] = l;
+		}
+
+		/* What remains is only rounding errors away from 1 */
+		while(largeCount > 0) {
+			int l = large[--largeCount];
+			aliasProbability[l] = 1;
+			alias[l] = l;
+		}
+
+		while(smallCount > 0) {
+			int s = small[--smallCount];
+			aliasProbability[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * Makes the 20 first iterations of an orbit, whose points aren't stored
+	 *
+	 * @param rand The random generator choosing the transformations
+	 * @param orbit The x, y and color index of the orbit, updated by this method
+	 */
+	void warmUp(FlameRandom rand, double[] orbit) {
+		run(null, rand, orbit, 20);
+	}
+
+	/**
+	 * Runs the chaos algorithm and stores the points in the accumulator
+	 *
+	 * @param flame The accumulator storing the points
+	 * @param rand The random generator choosing the transformations
+	 * @param orbit The x, y and color index of the orbit, updated by this method
+	 * @param iterations The number of iterations to do
+	 */
+	void iterate(PointAccumulator flame, FlameRandom rand, double[] orbit, long iterations) {
+		run(flame, rand, orbit, iterations);
+	}
+
+	/**
+	 * Runs the chaos algorithm on several independent orbits at the same time and stores their points in the accumulator.
+	 * The orbits are advanced iteration by iteration, one after the other, so that the processor can overlap
+	 * their computations, which don't depend on each other.
+	 *
+	 * @param flame The accumulator storing the points
+	 * @param rands The random generator of each orbit
+	 * @param orbits The x, y and color index of each orbit, updated by this method
+	 * @param lanes The number of orbits to advance
+	 * @param iterations The number of iterations to do on each orbit
+	 */
+	void iterate(PointAccumulator flame, FlameRandom[] rands, double[][] orbits, int lanes, long iterations) {
+		if(lanes == 1) {
+			run(flame, rands[0], orbits[0], iterations);
+		}
+		else {
+			run(flame, rands, orbits, lanes, iterations);
+		}
+	}
+
+	/*
+	 * Chaos algorithm
+	 *
+	 * 1) Picks a random transformation in the list of transformations, according to their weights
+	 * 2) Does the average of the previous transformation's color index and the actual transformation's color index
+	 * 3) Transforms the point
+	 * 4) Stores the transformed point with his color index in the accumulator, if there is one
+	 *
+	 * Remarks : the point is kept in local variables, only written back to the orbit at the end.
+	 */
+	private void run(PointAccumulator flame, FlameRandom rand, double[] orbit, long iterations) {
+		if(size == 0) return;
+
+		double x = orbit[0], y = orbit[1], c = orbit[2];
+		double[] xy = new double[2];
+
+		for(long m = 0; m < iterations; m++) {
+			/* The high bits of the draw choose the column of the alias table, the low bits the side */
+			long draw = rand.nextLong();
+			int i = (int)(((draw >>> 32) * size) >>> 32);
+			if((draw & 0xffffffffL) * 0x1.0p-32 >= aliasProbability[i]) i = alias[i];
+
+			c = 0.5*c + halfColorIndex[i]; // Same as the average, as halving is exact
+
+			int k = 6 * i;
+			double ax = (affine[k] * x) + (affine[k + 1] * y) + affine[k + 2];
+			double ay = (affine[k + 3] * x) + (affine[k + 4] * y) + affine[k + 5];
+
+			if(linear[i]) {
+				x = ax;
+				y = ay;
+			}
+			else {
+				Variation.transform(variationIndex, variationWeight, variationStart[i], variationStart[i + 1], ax, ay, xy);
+				x = xy[0];
+				y = xy[1];
+			}
+
+			if(flame != null) flame.hit(x, y, c);
+		}
+
+		orbit[0] = x;
+		orbit[1] = y;
+		orbit[2] = c;
+	}
+
+	/*
+	 * Same as the chaos algorithm above, on several orbits kept in local arrays.
+	 * The single orbit version is kept apart, as its point fits in registers.
+	 */
+	private void run(PointAccumulator flame, FlameRandom[] rands, double[][] orbits, int lanes, long iterations) {
+		if(size == 0) return;
+
+		double[] x = new double[lanes], y = new double[lanes], c = new double[lanes];
+		double[] xy = new double[2];
+
+		for(int l = 0; l < lanes; l++) {
+			x[l] = orbits[l][0];
+			y[l] = orbits[l][1];
+			c[l] = orbits[l][2];
+		}
+
+		for(long m = 0; m < iterations; m++) {
+			for(int l = 0; l < lanes; l++) {
+				/* The high bits of the draw choose the column of the alias table, the low bits the side */
+				long draw = rands[l].nextLong();
+				int i = (int)(((draw >>> 32) * size) >>> 32);
+				if((draw & 0xffffffffL) * 0x1.0p-32 >= aliasProbability[i]) i = alias[i];
+
+				c[l] = 0.5*c[l] + halfColorIndex[i]; // Same as the average, as halving is exact
+
+				int k = 6 * i;
+				double ax = (affine[k] * x[l]) + (affine[k + 1] * y[l]) + affine[k + 2];
+				double ay = (affine[k + 3] * x[l]) + (affine[k + 4] * y[l]) + affine[k + 5];
+
+				if(linear[i]) {
+					x[l] = ax;
+					y[l] = ay;
+				}
+				else {
+					Variation.transform(variationIndex, variationWeight, variationStart[i], variationStart[i + 1], ax, ay, xy);
+					x[l] = xy[0];
+					y[l] = xy[1];
+				}
+
+				if(flame != null) flame.hit(x[l], y[l], c[l]);
+			}
+		}
+
+		for(int l = 0; l < lanes; l++) {
+			orbits[l][0] = x[l];
+			orbits[l][1] = y[l];
+			orbits[l][2] = c[l];
+		}
+	}
+}
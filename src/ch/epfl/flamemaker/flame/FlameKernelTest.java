@@ -0,0 +1,100 @@
+/**
+ * FlameKernelTest class
+ * Checks that the alias table draws each transformation with the probability of its weight.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FlameKernelTest {
+	@Test
+	public void aliasTableGivesTheProbabilitiesOfTheWeights() {
+		double[][] weightSets = {
+			{1},
+			{1, 1, 1},
+			{0.2, 0.3, 0.5},
+			{1, 0, 2, 0, 3},
+			{1e-9, 1, 1e9},
+			{7, 7, 7, 7, 1e-3, 0.5}
+		};
+
+		for(double[] weights : weightSets) {
+			assertProbabilities(weights);
+		}
+
+		Random random = new Random(2013);
+		for(int k = 0; k < 1000; k++) {
+			double[] weights = new double[1 + random.nextInt(40)];
+
+			for(int i = 0; i < weights.length; i++) {
+				weights[i] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10;
+			}
+			weights[random.nextInt(weights.length)] = 1; // At least one positive weight
+
+			assertProbabilities(weights);
+		}
+	}
+
+	@Test
+	public void aliasTableIsUniformWithoutWeights() {
+		double[] probability = probabilities(new double[4]);
+
+		for(double p : probability) {
+			assertEquals(0.25, p, 1e-15);
+		}
+	}
+
+	@Test
+	public void aliasTableNeverKeepsAZeroWeight() {
+		double[] weights = {0, 3, 0, 1, 0};
+		double[] aliasProbability = new double[weights.length];
+		int[] alias = new int[weights.length];
+		FlameKernel.buildAliasTable(weights, aliasProbability, alias);
+
+		for(int i = 0; i < weights.length; i++) {
+			if(weights[i] == 0) {
+				assertEquals(0, aliasProbability[i], 0); // The column is always left for its alias
+				assertTrue(weights[alias[i]] > 0);
+			}
+		}
+	}
+
+	/* Compares the probability of each transformation given by the table with its share of the weights */
+	private static void assertProbabilities(double[] weights) {
+		double sum = 0;
+		for(double w : weights) sum += w;
+
+		double[] probability = probabilities(weights);
+
+		for(int i = 0; i < weights.length; i++) {
+			assertEquals("weight " + i + " of " + weights.length, weights[i] / sum, probability[i], 1e-12);
+		}
+	}
+
+	/* Probability of each transformation : a column is drawn uniformly, then kept or left for its alias */
+	private static double[] probabilities(double[] weights) {
+		int n = weights.length;
+		double[] aliasProbability = new double[n];
+		int[] alias = new int[n];
+		FlameKernel.buildAliasTable(weights, aliasProbability, alias);
+
+		double[] probability = new double[n];
+
+		for(int i = 0; i < n; i++) {
+			assertTrue(aliasProbability[i] >= 0 && aliasProbability[i] <= 1);
+
+			probability[i] += aliasProbability[i] / n;
+			probability[alias[i]] += (1 - aliasProbability[i]) / n;
+		}
+
+		return probability;
+	}
+}
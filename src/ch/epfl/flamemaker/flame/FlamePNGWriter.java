@@ -0,0 +1,285 @@
+/**
+ * FlamePNGWriter class
+ * Writes flame images in PNG (8-bit RGB) without building the whole image in memory.
+ * The rows are cut into bands, which are colorized and deflated on several threads. As in pigz, each band but
+ * the last one ends with a sync flush, so that the compressed bands put one after the other form a single
+ * zlib stream. The bands are written in order through a single channel, each of them in its own IDAT chunk
+ * whose CRC is computed as it is written. The Adler-32 of the stream is combined from the ones of the bands.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import ch.epfl.flamemaker.color.*;
+
+public final class FlamePNGWriter {
+	private static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final byte[] ZLIB_HEADER = {0x78, (byte)0x9c}; // Deflate with a 32 KB window, default compression
+	private static final int BAND_BYTES = 1 << 20; // Uncompressed size of a band, which is large enough for the sync flushes not to matter
+	private static final int ADLER_BASE = 65521;
+
+	private FlamePNGWriter() {}
+
+	/**
+	 * Writes an image in PNG, the first row being the top of the fractal
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param image The finished fractal, which the threads read at the same time
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param threads The number of threads colorizing and deflating the bands
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws InterruptedException When the thread is interrupted while waiting for the bands
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public static long write(Path file, FlameImage image, Palette palette, Color background, int threads) throws IOException, InterruptedException {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+			return write(file, image, palette, background, executor, threads);
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes an image in PNG with the threads of the given executor, for instance the ones computing other images,
+	 * so that writing doesn't add threads of its own. An image that can't be read by several threads at once
+	 * needs an executor running a single band at a time.
+	 *
+	 * @param file The file to write, replaced if it exists
+	 * @param image The finished fractal, which the threads read at the same time
+	 * @param palette The palette in order to colorize the fractal
+	 * @param background The color of the pixels without any point
+	 * @param executor The executor colorizing and deflating the bands. It isn't shut down by this method
+	 * @param threads The number of threads of the executor, at most two bands per thread are waiting to be written
+	 * @return The number of bytes written
+	 * @throws IOException When the file can't be written
+	 * @throws InterruptedException When the thread is interrupted while waiting for the bands
+	 * @throws IllegalArgumentException When threads isn't a positive number
+	 */
+	public static long write(Path file, final FlameImage image, final Palette palette, final Color background, ExecutorService executor, int threads)
+			throws IOException, InterruptedException {
+		if(threads <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		final int width = image.width(), height = image.height();
+		final int rowBytes = 1 + 3 * width; // Filter type, then the samples
+		final int rowsPerBand = Math.max(1, BAND_BYTES / rowBytes);
+		int bands = (height + rowsPerBand - 1) / rowsPerBand;
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		Deque<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+		long written = 0;
+
+		try {
+			written += writeFully(channel, ByteBuffer.wrap(SIGNATURE));
+
+			ByteBuffer header = ByteBuffer.allocate(13);
+			header.putInt(width).putInt(height).put((byte)8).put((byte)2).put((byte)0).put((byte)0).put((byte)0); // 8-bit RGB, no interlace
+			written += writeChunk(channel, "IHDR", header.array(), 0, 13);
+
+			/* At most two bands per thread are waiting to be written, the next ones are submitted as they are */
+			int submitted = 0;
+			long adler = 1;
+
+			for(int b = 0; b < bands; b++) {
+				while(submitted < bands && pending.size() < 2 * threads) {
+					final int from = submitted * rowsPerBand, to = Math.min(height, from + rowsPerBand);
+					final boolean last = submitted == bands - 1;
+
+					pending.add(executor.submit(new Callable<Band>() {
+						public Band call() {
+							return compress(image, palette, background, from, to, rowBytes, last);
+						}
+					}));
+					submitted++;
+				}
+
+				Band band = join(pending.poll());
+
+				byte[] data = band.data;
+				int size = band.size;
+				if(b == 0) { // The zlib header starts the stream
+					byte[] withHeader = new byte[size + 2];
+					System.arraycopy(ZLIB_HEADER, 0, withHeader, 0, 2);
+					System.arraycopy(data, 0, withHeader, 2, size);
+					data = withHeader;
+					size += 2;
+				}
+
+				written += writeChunk(channel, "IDAT", data, 0, size);
+				adler = adler32Combine(adler, band.adler, band.length);
+			}
+
+			/* The zlib stream ends with the Adler-32 of the uncompressed rows */
+			written += writeChunk(channel, "IDAT", ByteBuffer.allocate(4).putInt((int)adler).array(), 0, 4);
+			written += writeChunk(channel, "IEND", new byte[0], 0, 0);
+		}
+		finally {
+			for(Future<Band> band : pending) {
+				band.cancel(true); // Only the bands left when one of them has failed
+			}
+
+			channel.close();
+		}
+
+		return written;
+	}
+
+	/*
+	 * Compressed band of rows, with the Adler-32 and the length of its uncompressed bytes
+	 */
+	private static final class Band {
+		final byte[] data;
+		final int size;
+		final long adler, length;
+
+		Band(byte[] data, int size, long adler, long length) {
+			this.data = data;
+			this.size = size;
+			this.adler = adler;
+			this.length = length;
+		}
+	}
+
+	/*
+	 * Colorizes the rows [from, to[, filters them with the Sub filter and deflates them.
+	 * The band ends with a sync flush, or ends the deflate stream if it is the last one.
+	 */
+	private static Band compress(FlameImage image, Palette palette, Color background, int from, int to, int rowBytes, boolean last) {
+		byte[] rows = new byte[(to - from) * rowBytes];
+
+		for(int row = from; row < to; row++) {
+			int start = (row - from) * rowBytes;
+			rows[start] = 1; // Sub : each sample is stored as its difference with the same sample of the pixel on the left
+			FlameImageWriter.encodeRows(ByteBuffer.wrap(rows, start + 1, rowBytes - 1), FlameImageWriter.Format.P6, ToneMap.sRGB(255), image, palette, background, row, row + 1);
+
+			for(int k = start + rowBytes - 1; k >= start + 4; k--) {
+				rows[k] -= rows[k - 3];
+			}
+		}
+
+		Adler32 adler = new Adler32();
+		adler.update(rows);
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // Raw deflate, the zlib wrapping is written apart
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(rows.length / 4);
+		byte[] buffer = new byte[1 << 16];
+
+		try {
+			deflater.setInput(rows);
+
+			if(last) {
+				deflater.finish();
+
+				while(!deflater.finished()) {
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+			else {
+				int n;
+
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				} while(n == buffer.length); // A full buffer may hide more output
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		return new Band(compressed.toByteArray(), compressed.size(), adler.getValue(), rows.length);
+	}
+
+	/*
+	 * Adler-32 of two byte sequences put one after the other, from the Adler-32 of each of them (as adler32_combine of zlib)
+	 */
+	static long adler32Combine(long adler1, long adler2, long length2) {
+		long remainder = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+
+		sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - remainder;
+
+		if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if(sum2 >= 2L * ADLER_BASE) sum2 -= 2L * ADLER_BASE;
+		if(sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+
+		return sum1 | (sum2 << 16);
+	}
+
+	/*
+	 * Writes a chunk : its length, its type, its data and the CRC-32 of its type and data
+	 */
+	private static int writeChunk(FileChannel channel, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(Charset.forName("US-ASCII"));
+
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+
+		ByteBuffer head = ByteBuffer.allocate(8).putInt(length).put(typeBytes);
+		head.flip();
+		ByteBuffer tail = ByteBuffer.allocate(4).putInt((int)crc.getValue());
+		tail.flip();
+
+		return writeFully(channel, head) + writeFully(channel, ByteBuffer.wrap(data, offset, length)) + writeFully(channel, tail);
+	}
+
+	/*
+	 * A channel can write less bytes than asked
+	 */
+	private static int writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		int bytes = buffer.remaining();
+
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		return bytes;
+	}
+
+	/*
+	 * Waits for a band
+	 */
+	private static Band join(Future<Band> band) throws InterruptedException {
+		try {
+			return band.get();
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
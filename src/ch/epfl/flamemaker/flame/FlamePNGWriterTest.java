@@ -0,0 +1,175 @@
+/**
+ * FlamePNGWriterTest class
+ * Checks the PNG files written band by band : the pixels read back by ImageIO, the zlib stream made of
+ * the sync-flushed bands, and the Adler-32 combined from the ones of the bands.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class FlamePNGWriterTest {
+	private static final Palette PALETTE = new InterpolatedPalette(Arrays.asList(Color.RED, Color.GREEN, Color.BLUE));
+	private static final Color BACKGROUND = new Color(0.1, 0.2, 0.3);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void adler32CombineIsTheAdler32OfBothSequences() {
+		Random random = new Random(2013);
+
+		for(int k = 0; k < 200; k++) {
+			byte[] bytes = new byte[random.nextInt(200000)];
+			random.nextBytes(bytes);
+			if(k % 2 == 0) Arrays.fill(bytes, 0, bytes.length / 2, (byte)0xff); // Large sums
+			int split = bytes.length == 0 ? 0 : random.nextInt(bytes.length + 1);
+
+			assertEquals(adler32(bytes, 0, bytes.length),
+					FlamePNGWriter.adler32Combine(adler32(bytes, 0, split), adler32(bytes, split, bytes.length), bytes.length - split));
+		}
+	}
+
+	@Test
+	public void writesTheAccumulatorInSeveralBands() throws Exception {
+		FlameAccumulator accumulator = randomAccumulator(1000, 800); // 3 bands of 1 MB at most
+
+		for(int threads : new int[] {1, 3}) {
+			File file = folder.newFile("flame-" + threads + ".png");
+			FlamePNGWriter.write(file.toPath(), accumulator, PALETTE, BACKGROUND, threads);
+
+			assertPixels(accumulator, PALETTE, ImageIO.read(file)); // The exact colors, the palette isn't baked
+			assertEquals(3, checkZlibStream(Files.readAllBytes(file.toPath()), 1000, 800));
+		}
+	}
+
+	@Test
+	public void writesAnyImageOfOneBand() throws Exception {
+		FlameImage gradient = new FlameImage() {
+			public int width() {
+				return 37;
+			}
+
+			public int height() {
+				return 11;
+			}
+
+			public Color color(Palette palette, Color background, int x, int y) {
+				return palette.colorForIndex((x + 37.0 * y) / (37 * 11));
+			}
+		};
+		File file = folder.newFile("gradient.png");
+		FlamePNGWriter.write(file.toPath(), gradient, PALETTE, BACKGROUND, 2);
+
+		assertPixels(gradient, PALETTE, ImageIO.read(file));
+		assertEquals(1, checkZlibStream(Files.readAllBytes(file.toPath()), 37, 11));
+	}
+
+	/* The pixels of the file, the first row being the top of the image */
+	private static void assertPixels(FlameImage image, Palette palette, BufferedImage read) {
+		assertEquals(image.width(), read.getWidth());
+		assertEquals(image.height(), read.getHeight());
+
+		for(int row = 0; row < image.height(); row++) {
+			for(int x = 0; x < image.width(); x++) {
+				int expected = image.color(palette, BACKGROUND, x, image.height() - 1 - row).asPackedRGB();
+				assertEquals("pixel " + x + ", " + row, expected, read.getRGB(x, row) & 0xffffff);
+			}
+		}
+	}
+
+	/*
+	 * Checks the CRC of the chunks, that each band but the last ends with a sync flush, and inflates the IDAT
+	 * chunks as one zlib stream, which checks its Adler-32. Gives the number of bands.
+	 */
+	private static int checkZlibStream(byte[] png, int width, int height) throws DataFormatException {
+		ByteBuffer buffer = ByteBuffer.wrap(png);
+		buffer.position(8);
+		List<byte[]> idat = new ArrayList<byte[]>();
+
+		while(buffer.hasRemaining()) {
+			int length = buffer.getInt();
+			byte[] typeAndData = new byte[4 + length];
+			buffer.get(typeAndData);
+
+			CRC32 crc = new CRC32();
+			crc.update(typeAndData);
+			assertEquals((int)crc.getValue(), buffer.getInt());
+
+			if(new String(typeAndData, 0, 4).equals("IDAT")) idat.add(Arrays.copyOfRange(typeAndData, 4, typeAndData.length));
+		}
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for(int k = 0; k < idat.size(); k++) {
+			byte[] data = idat.get(k);
+
+			if(k < idat.size() - 2) { // Empty stored block of the sync flush
+				assertArrayEquals(new byte[] {0, 0, (byte)0xff, (byte)0xff}, Arrays.copyOfRange(data, data.length - 4, data.length));
+			}
+
+			stream.write(data, 0, data.length);
+		}
+		assertEquals(4, idat.get(idat.size() - 1).length); // The Adler-32 alone
+
+		Inflater inflater = new Inflater();
+		byte[] rows = new byte[height * (1 + 3 * width) + 1];
+
+		try {
+			inflater.setInput(stream.toByteArray());
+			assertEquals(rows.length - 1, inflater.inflate(rows)); // Fails on a wrong Adler-32
+			assertTrue(inflater.finished());
+			assertEquals(0, inflater.getRemaining());
+		}
+		finally {
+			inflater.end();
+		}
+
+		return idat.size() - 1;
+	}
+
+	private static long adler32(byte[] bytes, int from, int to) {
+		Adler32 adler = new Adler32();
+		adler.update(bytes, from, to - from);
+
+		return adler.getValue();
+	}
+
+	/* Hits random points, more of them near the center of the frame */
+	private static FlameAccumulator randomAccumulator(int width, int height) {
+		Rectangle frame = new Rectangle(new Point(0, 0), 2, 2);
+		FlameAccumulator.Builder builder = new FlameAccumulator.Builder(frame, width, height);
+		Random random = new Random(7);
+
+		for(int k = 0; k < 2000000; k++) {
+			builder.hit(random.nextGaussian() * 0.4, random.nextGaussian() * 0.4, random.nextDouble());
+		}
+
+		return builder.build();
+	}
+}
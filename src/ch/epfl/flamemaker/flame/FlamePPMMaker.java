@@ -7,15 +7,46 @@
 
 package ch.epfl.flamemaker.flame;
 
-import java.io.PrintStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Paths;
 import ch.epfl.flamemaker.color.*;
 import ch.epfl.flamemaker.geometry2d.*;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FlamePPMMaker {
+    /**
+     * Without arguments, renders the two demo flames.
+     * With a manifest (and optionally a number of threads), renders all the jobs of the manifest.
+     * 
+     * @param args Nothing, or the name of a manifest and optionally the number of threads
+     * @see FlameJob#readManifest(String)
+     */
     public static void main(String[] args) {
+        if(args.length > 0) {
+            int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+            try {
+                renderBatch(FlameJob.readManifest(args[0]), threads);
+            }
+            catch(IOException e) {
+                System.out.println("Manifeste illisible : " + e.getMessage());
+            }
+            catch(IllegalArgumentException e) {
+                System.out.println("Manifeste invalide : " + e.getMessage());
+            }
+            catch(InterruptedException e) {
+                System.out.println("Rendu interrompu");
+            }
+
+            return;
+        }
 
         /*
          * turbulence
@@ -50,7 +81,7 @@ public class FlamePPMMaker {
         
         System.out.println("Calcul turbulence en cours...");
         fractal = fractalGenerator.compute(frame, 500, 500, 50);
-        generateImage("turbulence.ppm", fractal, palette);
+        if(!writeDemo("turbulence.ppm", fractal, palette)) return;
         
         /* 
          * Shark fin
@@ -73,41 +104,177 @@ public class FlamePPMMaker {
 
         System.out.println("Calcul sharkfin en cours...");
         fractal = fractalGenerator.compute(frame, 500, 400, 50);
-        generateImage("shark-fin.ppm", fractal, palette);
+        writeDemo("shark-fin.ppm", fractal, palette);
+    }
+
+    /*
+     * Writes an image of the demo, telling whether it could be written
+     */
+    private static boolean writeDemo(String fileName, FlameImage fractal, Palette palette) {
+        try {
+            generateImage(fileName, fractal, palette);
+            return true;
+        }
+        catch(IOException e) {
+            System.out.println("Ecriture impossible : " + e.getMessage());
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Ecriture interrompue");
+        }
+
+        return false;
+    }
+
+    /**
+     * Renders a batch of jobs. The computations run on a pool of threads while a single thread writes
+     * the finished images, so that the writing of an image overlaps the computation of the next ones.
+     * The images are colorized by a pool of their own, of as many threads, so that the bands of an image don't wait
+     * behind the computations queued. As there is a single writer, it only colorizes one image at a time.
+     * At most threads + 1 accumulators are kept in memory at the same time. The jobs that can't be computed or
+     * written are reported and counted, and the other ones go on.
+     * 
+     * @param jobs The jobs to render
+     * @param threads The number of threads computing the flames
+     * @throws InterruptedException When the thread is interrupted while waiting for the jobs
+     */
+    public static void renderBatch(List<FlameJob> jobs, int threads) throws InterruptedException {
+        if(threads <= 0) {
+            throw new IllegalArgumentException();
+        }
+
+        final ExecutorService computers = Executors.newFixedThreadPool(threads);
+        final ExecutorService colorizers = Executors.newFixedThreadPool(threads);
+        final int colorizerCount = threads;
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        final Semaphore inFlight = new Semaphore(threads + 1);
+        final CountDownLatch done = new CountDownLatch(jobs.size());
+        final AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+
+        try {
+            for(final FlameJob job : jobs) {
+                inFlight.acquire(); // Waits until an accumulator has been written
+
+                computers.execute(new Runnable() {
+                    public void run() {
+                        boolean handedOver = false; // The writer releases the job once it has it
+
+                        try {
+                            long computeStart = System.nanoTime();
+                            final FlameAccumulator fractal = job.compute();
+                            final long computeTime = System.nanoTime() - computeStart;
+
+                            writer.execute(new Runnable() {
+                                public void run() {
+                                    long writeStart = System.nanoTime();
+
+                                    try {
+                                        generateImage(job.output(), fractal, job.palette(), colorizers, colorizerCount);
+                                        System.out.println(job.name() + " : calcul " + computeTime / 1000000 + " ms, ecriture " + (System.nanoTime() - writeStart) / 1000000 + " ms");
+                                    }
+                                    catch(IOException e) {
+                                        failures.incrementAndGet();
+                                        System.out.println(job.name() + " : echec de l'ecriture (" + e + ")");
+                                    }
+                                    catch(InterruptedException e) {
+                                        failures.incrementAndGet();
+                                        Thread.currentThread().interrupt();
+                                        System.out.println(job.name() + " : ecriture interrompue");
+                                    }
+                                    catch(RuntimeException e) {
+                                        failures.incrementAndGet();
+                                        System.out.println(job.name() + " : echec de l'ecriture (" + e + ")");
+                                    }
+                                    finally { // Errors included, or the batch would wait for this job forever
+                                        inFlight.release();
+                                        done.countDown();
+                                    }
+                                }
+                            });
+                            handedOver = true;
+                        }
+                        catch(RuntimeException e) {
+                            failures.incrementAndGet();
+                            System.out.println(job.name() + " : echec du calcul (" + e + ")");
+                        }
+                        finally {
+                            if(!handedOver) { // Errors included, or the batch would wait for this job forever
+                                inFlight.release();
+                                done.countDown();
+                            }
+                        }
+                    }
+                });
+            }
+
+            done.await();
+        }
+        finally {
+            computers.shutdown();
+            writer.shutdown();
+            colorizers.shutdown(); // After the writer, whose last image may still be colorized
+        }
+
+        System.out.println((jobs.size() - failures.get()) + " images en " + (System.nanoTime() - start) / 1000000 + " ms, " + failures.get() + " echecs");
     }
 
     /**
-     * Generates the final image of the fractal
+     * Generates the final image of the fractal, in binary PPM (P6), or in 16-bit PAM or PNG when the name ends with .pam or .png.
+     * A flame accumulator is colorized by all the processors.
      * 
      * @param fileName The name of the file to be created
-     * @param fractal The finished fractal in a flame accumulator
+     * @param fractal The finished fractal, in a flame accumulator or a tiled one
      * @param palette The palette in order to colorize the fractal during the generation of the image
+     * @throws IOException When the file can't be written
+     * @throws InterruptedException When the thread is interrupted while waiting for the colorizing threads
      */
-    public static void generateImage(String fileName, FlameAccumulator fractal, Palette palette) {
-        PrintStream file = null;
-        Color color;
+    public static void generateImage(String fileName, FlameImage fractal, Palette palette) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads); // Its threads are only started if a flame accumulator needs them
 
         try {
-            file = new PrintStream(fileName);
+            generateImage(fileName, fractal, palette, executor, threads);
         }
-        catch(FileNotFoundException e) {
-            System.out.println("Fichier non trouve !");
+        finally {
+            executor.shutdown();
         }
+    }
+
+    /**
+     * Generates the final image of the fractal as above, a flame accumulator being colorized by the threads of the given executor
+     * 
+     * @param fileName The name of the file to be created
+     * @param fractal The finished fractal, in a flame accumulator or a tiled one
+     * @param palette The palette in order to colorize the fractal during the generation of the image
+     * @param executor The executor colorizing a flame accumulator. It isn't shut down by this method
+     * @param threads The number of threads of the executor
+     * @throws IOException When the file can't be written
+     * @throws InterruptedException When the thread is interrupted while waiting for the colorizing threads
+     */
+    public static void generateImage(String fileName, FlameImage fractal, Palette palette, ExecutorService executor, int threads)
+            throws IOException, InterruptedException {
+        FlameImageWriter.Format format = fileName.endsWith(".pam") ? FlameImageWriter.Format.PAM_16 : FlameImageWriter.Format.P6;
 
         System.out.println("Ecriture du fichier " + fileName);
-        file.println("P3");
-        file.println(fractal.width() + " " + fractal.height());
-        file.println("100");
-
-        for(int i = fractal.height()-1; i >= 0; i--) {
-            for(int j = 0; j < fractal.width(); j++) {
-                color = fractal.color(palette, Color.BLACK, j, i);
-                file.print(Color.sRGBEncode(color.red(), 100) + " " + Color.sRGBEncode(color.green(), 100) + " " + Color.sRGBEncode(color.blue(), 100) + " ");
-            }
 
-            file.println();
+        long start = System.nanoTime();
+        long bytes;
+
+        if(fileName.endsWith(".png")) {
+            bytes = fractal instanceof FlameAccumulator
+                    ? FlamePNGWriter.write(Paths.get(fileName), fractal, palette, Color.BLACK, executor, threads)
+                    : FlamePNGWriter.write(Paths.get(fileName), fractal, palette, Color.BLACK, 1); // A single band at a time
         }
+        else if(fractal instanceof FlameAccumulator) { // Can be read by several threads at once
+            bytes = FlameImageWriter.writeParallel(Paths.get(fileName), format, fractal, palette, Color.BLACK, ToneMap.sRGB(format.maxValue()), executor, threads);
+        }
+        else {
+            bytes = FlameImageWriter.write(Paths.get(fileName), format, fractal, palette, Color.BLACK);
+        }
+
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
 
-        file.close();
+        System.out.printf("%s : %.1f Mo ecrits a %.1f Mo/s%n", fileName, bytes / 1e6, bytes / 1e6 / seconds);
     }
 }
@@ -0,0 +1,21 @@
+/**
+ * FlameProgressListener interface
+ * Receives the progress of a flame computation
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+public interface FlameProgressListener {
+	/**
+	 * Called regularly during a computation. When the computation runs on several threads,
+	 * it is called from the worker threads.
+	 *
+	 * @param iterations The number of iterations done so far
+	 * @param total The number of iterations asked
+	 * @param remainingNanos The estimated time left in nanoseconds, -1 if it isn't known yet
+	 */
+	public void progress(long iterations, long total, long remainingNanos);
+}
@@ -0,0 +1,75 @@
+/**
+ * FlameRandom class
+ * Pseudo-random generator used by the chaos algorithm (SplitMix64).
+ * Its whole state is a single long, so independent streams can be derived from a seed and a chunk index.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+final class FlameRandom {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private long state;
+
+	/**
+	 * FlameRandom constructor
+	 *
+	 * @param seed The initial state of the generator
+	 */
+	FlameRandom(long seed) {
+		state = seed;
+	}
+
+	/**
+	 * Creates the generator of a chunk of iterations.
+	 * The stream only depends on the seed and the chunk index, not on the thread running the chunk.
+	 *
+	 * @param seed The seed of the whole computation
+	 * @param chunk The index of the chunk
+	 * @return A new generator for the given chunk
+	 */
+	static FlameRandom forChunk(long seed, long chunk) {
+		return new FlameRandom(mix64(mix64(seed) + chunk * GOLDEN_GAMMA));
+	}
+
+	/**
+	 * @return The state of the generator, which gives back the same generator when passed to the constructor
+	 */
+	long state() {
+		return state;
+	}
+
+	/**
+	 * @return The next pseudo-random long
+	 */
+	long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix64(state);
+	}
+
+	/**
+	 * @param bound The upper bound (exclusive) of the value
+	 * @return A pseudo-random integer in [0,bound[
+	 */
+	int nextInt(int bound) {
+		return (int)(((nextLong() >>> 32) * bound) >>> 32); // Keeps the high bits, which are the best mixed
+	}
+
+	/**
+	 * @return A pseudo-random double in [0,1[
+	 */
+	double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/*
+	 * Finalizer of MurmurHash3, as used by SplitMix64
+	 */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb93c05a1ca63L;
+		return z ^ (z >>> 33);
+	}
+}
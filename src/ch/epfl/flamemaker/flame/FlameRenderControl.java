@@ -0,0 +1,105 @@
+/**
+ * FlameRenderControl class
+ * Controls a flame computation : gives it a time budget, allows to cancel it and reports its progress.
+ * A computation stopped by its control returns the points computed so far, which makes a noisier but usable image.
+ *
+ * A control is meant to be used by a single computation.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class FlameRenderControl {
+	static final long SLICE_ITERATIONS = 1 << 16; // Iterations done between two checks of the control
+
+	private final long deadline;
+	private final FlameProgressListener listener;
+	private final AtomicLong iterations = new AtomicLong();
+	private volatile boolean cancelled;
+	private volatile long total, start;
+
+	/**
+	 * FlameRenderControl constructor, without time budget
+	 *
+	 * @param listener The listener receiving the progress, or null
+	 */
+	public FlameRenderControl(FlameProgressListener listener) {
+		this(Long.MAX_VALUE, listener);
+	}
+
+	/**
+	 * FlameRenderControl constructor
+	 *
+	 * @param budgetMillis The wall-clock time allowed to the computation in milliseconds, counted from now
+	 * @param listener The listener receiving the progress, or null
+	 * @throws IllegalArgumentException When the budget is negative
+	 */
+	public FlameRenderControl(long budgetMillis, FlameProgressListener listener) {
+		if(budgetMillis < 0) {
+			throw new IllegalArgumentException();
+		}
+
+		long now = System.nanoTime();
+		this.deadline = budgetMillis >= Long.MAX_VALUE / 1000000 ? Long.MAX_VALUE : now + budgetMillis * 1000000;
+		this.listener = listener;
+		this.start = now;
+	}
+
+	/**
+	 * Cancels the computation. It stops after its current slice of iterations.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return true if the computation has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return The number of iterations done so far
+	 */
+	public long iterations() {
+		return iterations.get();
+	}
+
+	/**
+	 * Called by the computation when it starts
+	 *
+	 * @param total The number of iterations asked
+	 */
+	void begin(long total) {
+		this.total = total;
+		this.start = System.nanoTime();
+		iterations.set(0);
+	}
+
+	/**
+	 * Called by the computation after each slice of iterations
+	 *
+	 * @param n The number of iterations done in the slice
+	 */
+	void advance(long n) {
+		long done = iterations.addAndGet(n);
+
+		if(listener != null) {
+			long elapsed = System.nanoTime() - start;
+			long remaining = done == 0 ? -1 : (long)((double)elapsed * (total - done) / done);
+			listener.progress(done, total, remaining);
+		}
+	}
+
+	/**
+	 * @return true if the computation must stop, because it has been cancelled or because its budget has run out
+	 */
+	boolean stopRequested() {
+		return cancelled || (deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0);
+	}
+}
@@ -0,0 +1,523 @@
+/**
+ * FlameSession class
+ * Resumable computation of a flame. It keeps the state of the chaos algorithm between two calls,
+ * so that more iterations can be added to an image without computing it again from the start.
+ *
+ * The iterations are done in the same chunks, with the same random streams, as Flame.compute :
+ * after n iterations, a snapshot is the same as the accumulator computed by Flame.compute with
+ * the same seed and density * width * height equal to n.
+ *
+ * A session can be saved in a checkpoint file and restored later on, by another process for instance,
+ * with the same result as if it had never stopped. While computing, the checkpoints are written by a
+ * background thread from a copy of the planes, so the iterations go on while the file is written.
+ *
+ * A session isn't thread safe.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ch.epfl.flamemaker.geometry2d.*;
+
+public final class FlameSession {
+	private static final int CHECKPOINT_MAGIC = 0x464c4d43; // "FLMC"
+	private static final int CHECKPOINT_VERSION = 1;
+	private static final int CHECKPOINT_HEADER_BYTES = 4 + 4 + 8 + 5 * 8 + 3 * 8 + 4 * 8 + 3 * 4;
+	private static final int WINDOW_CELLS = 1 << 26; // Cells mapped at once, a mapping can't go over 2 GB
+
+	private final Flame fractal;
+	private final FlameKernel kernel;
+	private final FlameAccumulator.Builder flame;
+	private final int width, height;
+	private final long seed;
+	private final double[] orbit = new double[3]; // x, y and color index of the point
+	private FlameRandom rand;
+	private long chunk, chunkPosition;
+	private long iterations;
+	private int[] savedHitCount; // Copy of the planes written by the background checkpoint, reused by the next one
+	private long[] savedColorIndexSum;
+
+	/**
+	 * FlameSession constructor, with the seed used by Flame.compute by default
+	 *
+	 * @param fractal The flame to compute
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 */
+	public FlameSession(Flame fractal, Rectangle frame, int width, int height) {
+		this(fractal, frame, width, height, Flame.DEFAULT_SEED);
+	}
+
+	/**
+	 * FlameSession constructor
+	 *
+	 * @param fractal The flame to compute
+	 * @param frame A rectangle object that represents the part of the plan that saves the computed points
+	 * @param width Width of the accumulator
+	 * @param height Height of the accumulator
+	 * @param seed The seed of the random transformation choices
+	 */
+	public FlameSession(Flame fractal, Rectangle frame, int width, int height, long seed) {
+		this(fractal, new FlameAccumulator.Builder(frame, width, height), seed);
+	}
+
+	/**
+	 * FlameSession constructor, storing the points in the given builder, for instance an oversampled one
+	 *
+	 * @param fractal The flame to compute
+	 * @param flame The builder storing the points. It mustn't be used elsewhere while the session goes on
+	 * @param seed The seed of the random transformation choices
+	 */
+	public FlameSession(Flame fractal, FlameAccumulator.Builder flame, long seed) {
+		this.fractal = fractal;
+		this.kernel = fractal.kernel();
+		this.flame = flame;
+		this.width = flame.width();
+		this.height = flame.height();
+		this.seed = seed;
+		this.chunkPosition = Flame.CHUNK_ITERATIONS; // The first call starts the first chunk
+		this.chunk = -1;
+	}
+
+	/**
+	 * Iterations getter
+	 *
+	 * @return The number of iterations stored in the accumulator so far
+	 */
+	public long iterations() {
+		return iterations;
+	}
+
+	/**
+	 * Does more iterations of the chaos algorithm, going on from where the last call stopped
+	 *
+	 * @param n The number of iterations to add
+	 * @throws IllegalArgumentException When n is negative
+	 */
+	public void continueFor(long n) {
+		continueFor(n, null);
+	}
+
+	/**
+	 * Does more iterations of the chaos algorithm, until n iterations have been added or until the control stops them.
+	 * A stopped session can be continued later on, with the same result as if it hadn't been stopped.
+	 *
+	 * @param n The number of iterations to add
+	 * @param control The control receiving the progress and stopping the computation, or null
+	 * @return The number of iterations actually added
+	 * @throws IllegalArgumentException When n is negative
+	 */
+	public long continueFor(long n, FlameRenderControl control) {
+		if(n < 0) {
+			throw new IllegalArgumentException();
+		}
+
+		long done = 0;
+
+		if(control != null) control.begin(n);
+
+		while(done < n && (control == null || !control.stopRequested())) {
+			if(chunkPosition == Flame.CHUNK_ITERATIONS) {
+				/* Starts a new orbit, with its own random stream and its own warm-up */
+				chunk++;
+				chunkPosition = 0;
+				rand = FlameRandom.forChunk(seed, chunk);
+				orbit[0] = orbit[1] = orbit[2] = 0;
+				kernel.warmUp(rand, orbit);
+			}
+
+			long step = Math.min(n - done, Flame.CHUNK_ITERATIONS - chunkPosition);
+			if(control != null) step = Math.min(step, FlameRenderControl.SLICE_ITERATIONS);
+
+			kernel.iterate(flame, rand, orbit, step);
+
+			chunkPosition += step;
+			iterations += step;
+			done += step;
+
+			if(control != null) control.advance(step);
+		}
+
+		return done;
+	}
+
+	/**
+	 * Does the iterations missing to reach the given density
+	 *
+	 * @param density The density to reach, as given to Flame.compute
+	 */
+	public void continueToDensity(int density) {
+		continueFor(Math.max(0, (long)density * width * height - iterations));
+	}
+
+	/**
+	 * Does iterations until the image converges or until the given number of iterations is reached.
+	 * The image is compared each time the number of iterations doubles, starting from a density of 1.
+	 * The change between two images is the mean absolute difference of the normalized log-intensity of
+	 * the cells hit in at least one of them, the previous counts being scaled to the current number of
+	 * iterations first so that only the noise is measured. The empty background doesn't count, so a
+	 * sparse flame isn't taken as converged before its lit cells are stable, and an image without any
+	 * point never is. The image has converged when this change is at most the tolerance (one 8-bit
+	 * step is about 0.004).
+	 *
+	 * @param tolerance The change allowed between two images, in [0,1]
+	 * @param maxIterations The number of iterations after which the session stops, converged or not
+	 * @return true if the image has converged, false if the session stopped at the maximum number of iterations
+	 * @throws IllegalArgumentException When the tolerance isn't included in [0,1]
+	 */
+	public boolean continueUntilConverged(double tolerance, long maxIterations) {
+		if(!(tolerance >= 0 && tolerance <= 1)) {
+			throw new IllegalArgumentException();
+		}
+
+		int[] previous = null;
+		long previousIterations = 0;
+		long target = Math.max(iterations, (long)width * height);
+
+		while(true) {
+			continueFor(Math.max(0, Math.min(target, maxIterations) - iterations));
+			int[] counts = flame.hitCounts();
+
+			if(previous != null && iterations > previousIterations
+					&& logIntensityChange(previous, counts, (double)iterations / previousIterations) <= tolerance) {
+				return true;
+			}
+
+			if(iterations >= maxIterations) return false;
+
+			previous = counts;
+			previousIterations = iterations;
+			target = 2 * iterations;
+		}
+	}
+
+	/*
+	 * Mean absolute difference of the normalized log-intensity of the cells hit in either image,
+	 * the previous counts being multiplied by the given ratio. Infinite when no cell has been hit.
+	 */
+	private static double logIntensityChange(int[] previous, int[] counts, double ratio) {
+		int max = 0;
+		for(int count : counts) {
+			max = Math.max(max, count);
+		}
+
+		if(max == 0) return Double.POSITIVE_INFINITY; // Nothing to compare yet
+
+		double logMax = Math.log(max + 1), change = 0;
+		int hit = 0;
+
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i] == 0 && previous[i] == 0) continue; // Background, left out of the mean
+
+			double before = Math.min(logMax, Math.log(ratio * previous[i] + 1));
+			change += Math.abs(Math.log(counts[i] + 1) - before);
+			hit++;
+		}
+
+		return change / (hit * logMax);
+	}
+
+	/**
+	 * Does more iterations of the chaos algorithm, saving the session in the given checkpoint file every interval iterations
+	 * and at the end. When the process stops, the session can be restored from the last checkpoint.
+	 *
+	 * Each checkpoint copies the planes of the accumulator, which needs as much memory again, then a background thread
+	 * writes the copy while the next iterations are done. A checkpoint waits for the previous one to be written before
+	 * reusing the copy, and the last one is written when this method returns.
+	 *
+	 * @param n The number of iterations to add
+	 * @param checkpoint The checkpoint file
+	 * @param interval The number of iterations between two checkpoints
+	 * @throws IOException When the checkpoint can't be written
+	 * @throws IllegalArgumentException When n is negative or interval isn't positive
+	 */
+	public void continueFor(long n, File checkpoint, long interval) throws IOException {
+		if(n < 0 || interval <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		Future<Void> saving = null;
+
+		try {
+			while(n > 0) {
+				long step = Math.min(n, interval);
+				continueFor(step);
+				n -= step;
+
+				if(saving != null) await(saving); // The copy can be reused once written
+				saving = writer.submit(savedCopy(checkpoint));
+			}
+
+			if(saving != null) await(saving);
+		}
+		finally {
+			writer.shutdown();
+
+			if(saving != null && !saving.isDone()) { // Still read by the writer, the next checkpoint takes a new copy
+				savedHitCount = null;
+				savedColorIndexSum = null;
+			}
+		}
+	}
+
+	/**
+	 * Saves the state of the session in a checkpoint file : its position in the chunks, the state of the random generator,
+	 * the orbit, the number of iterations and the planes of the accumulator. The file is written next to the given one
+	 * then renamed, so that a process stopped while writing leaves the previous checkpoint intact.
+	 * The planes are copied in bulk to a memory-mapped file, which takes about as long as copying the accumulator,
+	 * then written to the disk before this method returns.
+	 *
+	 * @param file The checkpoint file, replaced if it exists
+	 * @throws IOException When the checkpoint can't be written
+	 */
+	public void checkpoint(File file) throws IOException {
+		write(file, header(), flame.hitCountPlane(), flame.colorIndexPlane());
+	}
+
+	/*
+	 * Copies the state of the session and the planes, and gives the task writing them
+	 */
+	private Callable<Void> savedCopy(final File file) {
+		final ByteBuffer header = header();
+		int[] hitCount = flame.hitCountPlane();
+		long[] colorIndexSum = flame.colorIndexPlane();
+
+		if(savedHitCount == null) {
+			savedHitCount = new int[hitCount.length];
+			savedColorIndexSum = new long[colorIndexSum.length];
+		}
+
+		System.arraycopy(hitCount, 0, savedHitCount, 0, hitCount.length);
+		System.arraycopy(colorIndexSum, 0, savedColorIndexSum, 0, colorIndexSum.length);
+
+		final int[] hitCountCopy = savedHitCount;
+		final long[] colorIndexSumCopy = savedColorIndexSum;
+
+		return new Callable<Void>() {
+			public Void call() throws IOException {
+				write(file, header, hitCountCopy, colorIndexSumCopy);
+				return null;
+			}
+		};
+	}
+
+	/*
+	 * Waits for a checkpoint written in the background, giving back its failure
+	 */
+	private static void await(Future<Void> saving) throws IOException {
+		try {
+			saving.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The computation has been interrupted", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/*
+	 * Header of a checkpoint, with the current state of the session
+	 */
+	private ByteBuffer header() {
+		Rectangle frame = flame.frame();
+
+		ByteBuffer header = ByteBuffer.allocate(CHECKPOINT_HEADER_BYTES);
+		header.putInt(CHECKPOINT_MAGIC).putInt(CHECKPOINT_VERSION).putLong(fingerprint(fractal));
+		header.putLong(seed).putLong(iterations).putLong(chunk).putLong(chunkPosition).putLong(rand == null ? 0 : rand.state());
+		header.putDouble(orbit[0]).putDouble(orbit[1]).putDouble(orbit[2]);
+		header.putDouble(frame.center().x()).putDouble(frame.center().y()).putDouble(frame.width()).putDouble(frame.height());
+		header.putInt(width).putInt(height).putInt(flame.oversampling());
+		header.flip();
+
+		return header;
+	}
+
+	/*
+	 * Writes a checkpoint to a temporary file, then renames it. Each window is forced to the disk then unmapped
+	 * at once, as the channel doesn't force the mapped changes, and the channel is forced at the end for the length.
+	 */
+	private static void write(File file, ByteBuffer header, int[] hitCount, long[] colorIndexSum) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+
+		try {
+			output.setLength(CHECKPOINT_HEADER_BYTES + 12L * hitCount.length);
+			FileChannel channel = output.getChannel();
+
+			while(header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+
+			long position = CHECKPOINT_HEADER_BYTES;
+
+			for(int from = 0; from < hitCount.length; from += WINDOW_CELLS) {
+				int cells = Math.min(WINDOW_CELLS, hitCount.length - from);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, position, 4L * cells);
+				window.asIntBuffer().put(hitCount, from, cells);
+				window.force();
+				MappedBuffers.unmap(window);
+				position += 4L * cells;
+			}
+
+			for(int from = 0; from < colorIndexSum.length; from += WINDOW_CELLS) {
+				int cells = Math.min(WINDOW_CELLS, colorIndexSum.length - from);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE, position, 8L * cells);
+				window.asLongBuffer().put(colorIndexSum, from, cells);
+				window.force();
+				MappedBuffers.unmap(window);
+				position += 8L * cells;
+			}
+
+			channel.force(true);
+		}
+		finally {
+			output.close();
+		}
+
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Restores a session saved by checkpoint. Going on with it gives the same result as going on with the saved session.
+	 *
+	 * @param fractal The flame of the saved session
+	 * @param file The checkpoint file
+	 * @return The restored session
+	 * @throws IOException When the file can't be read, isn't a checkpoint or belongs to another flame
+	 */
+	public static FlameSession restore(Flame fractal, File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+
+		try {
+			FileChannel channel = input.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(CHECKPOINT_HEADER_BYTES);
+
+			while(header.hasRemaining()) {
+				if(channel.read(header, header.position()) < 0) throw new IOException("Truncated checkpoint");
+			}
+
+			header.flip();
+
+			if(header.getInt() != CHECKPOINT_MAGIC) {
+				throw new IOException("Not a checkpoint");
+			}
+
+			int version = header.getInt();
+			if(version != CHECKPOINT_VERSION) {
+				throw new IOException("Unsupported version " + version);
+			}
+
+			if(header.getLong() != fingerprint(fractal)) {
+				throw new IOException("The checkpoint belongs to another flame");
+			}
+
+			long seed = header.getLong(), iterations = header.getLong(), chunk = header.getLong(), chunkPosition = header.getLong();
+			long randState = header.getLong();
+			double x = header.getDouble(), y = header.getDouble(), c = header.getDouble();
+			Point center = new Point(header.getDouble(), header.getDouble());
+			Rectangle frame = new Rectangle(center, header.getDouble(), header.getDouble());
+			int width = header.getInt(), height = header.getInt(), oversampling = header.getInt();
+
+			int cells;
+
+			try {
+				cells = FlameAccumulator.cellCount(width, height, oversampling);
+			}
+			catch(IllegalArgumentException e) {
+				throw new IOException("Corrupted checkpoint", e);
+			}
+
+			if(channel.size() != CHECKPOINT_HEADER_BYTES + 12L * cells) {
+				throw new IOException("Corrupted checkpoint");
+			}
+
+			int[] hitCount = new int[cells];
+			long[] colorIndexSum = new long[cells];
+			long position = CHECKPOINT_HEADER_BYTES;
+
+			for(int from = 0; from < hitCount.length; from += WINDOW_CELLS) {
+				int n = Math.min(WINDOW_CELLS, hitCount.length - from);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * n);
+				window.asIntBuffer().get(hitCount, from, n);
+				MappedBuffers.unmap(window);
+				position += 4L * n;
+			}
+
+			for(int from = 0; from < colorIndexSum.length; from += WINDOW_CELLS) {
+				int n = Math.min(WINDOW_CELLS, colorIndexSum.length - from);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * n);
+				window.asLongBuffer().get(colorIndexSum, from, n);
+				MappedBuffers.unmap(window);
+				position += 8L * n;
+			}
+
+			FlameSession session = new FlameSession(fractal, new FlameAccumulator.Builder(frame, width, height, oversampling, hitCount, colorIndexSum), seed);
+			session.iterations = iterations;
+			session.chunk = chunk;
+			session.chunkPosition = chunkPosition;
+			session.rand = chunk < 0 ? null : new FlameRandom(randState);
+			session.orbit[0] = x;
+			session.orbit[1] = y;
+			session.orbit[2] = c;
+
+			return session;
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/*
+	 * Summary of the transformations of a flame, which tells if a checkpoint has been saved with it
+	 */
+	private static long fingerprint(Flame fractal) {
+		Flame.Builder builder = new Flame.Builder(fractal);
+		long fingerprint = builder.transformationCount();
+
+		for(int i = 0; i < builder.transformationCount(); i++) {
+			for(double coefficient : builder.affineTransformation(i).coefficients()) {
+				fingerprint = 31 * fingerprint + Double.doubleToLongBits(coefficient);
+			}
+
+			for(Variation variation : Variation.ALL_VARIATIONS) {
+				fingerprint = 31 * fingerprint + Double.doubleToLongBits(builder.variationWeight(i, variation));
+			}
+
+			fingerprint = 31 * fingerprint + Double.doubleToLongBits(builder.weight(i));
+			fingerprint = 31 * fingerprint + Double.doubleToLongBits(fractal.colorIndex(i));
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * Takes an immutable copy of the accumulator. The session can go on after it.
+	 *
+	 * @return A Flame accumulator that holds the "image" of the fractal computed so far
+	 */
+	public FlameAccumulator snapshot() {
+		return flame.copy().build(); // Building hands the arrays over, the session keeps its own
+	}
+}
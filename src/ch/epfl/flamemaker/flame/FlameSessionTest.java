@@ -0,0 +1,139 @@
+/**
+ * FlameSessionTest class
+ * Checks that a session saved in a checkpoint and restored goes on as if it had never stopped,
+ * and that the checkpoints written in the background hold the state of the session when they were taken.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class FlameSessionTest {
+	private static final Rectangle FRAME = new Rectangle(new Point(-0.25, 0), 5, 4);
+	private static final int WIDTH = 200, HEIGHT = 160;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void restoredSessionGoesOnAsIfItHadNeverStopped() throws IOException {
+		File file = folder.newFile("session.flmc");
+		Flame flame = sharkFin();
+
+		FlameSession session = new FlameSession(flame, FRAME, WIDTH, HEIGHT, 2013);
+		session.continueFor(1500000); // Stops in the middle of the second chunk
+		session.checkpoint(file);
+
+		FlameSession restored = FlameSession.restore(flame, file);
+		assertEquals(1500000, restored.iterations());
+		assertArrayEquals(planes(session.snapshot()), planes(restored.snapshot()));
+
+		session.continueFor(1700000);
+		restored.continueFor(1700000);
+		assertArrayEquals(planes(session.snapshot()), planes(restored.snapshot()));
+		assertArrayEquals(planes(flame.compute(FRAME, WIDTH, HEIGHT, 100, 2013, 1)), planes(restored.snapshot()));
+	}
+
+	@Test
+	public void backgroundCheckpointsHoldTheStateWhenTaken() throws IOException {
+		File file = folder.newFile("session.flmc");
+		Flame flame = sharkFin();
+
+		FlameSession session = new FlameSession(flame, FRAME, WIDTH, HEIGHT, 7);
+		session.continueFor(2500000, file, 700000);
+
+		FlameSession restored = FlameSession.restore(flame, file);
+		assertEquals(2500000, restored.iterations());
+		assertArrayEquals(planes(session.snapshot()), planes(restored.snapshot()));
+
+		session.continueFor(1000000, file, 300000); // Reuses the copy of the planes
+		restored.continueFor(1000000);
+		assertArrayEquals(planes(restored.snapshot()), planes(FlameSession.restore(flame, file).snapshot()));
+		assertArrayEquals(planes(session.snapshot()), planes(restored.snapshot()));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void restoreRejectsAnotherFlame() throws IOException {
+		File file = folder.newFile("session.flmc");
+		new FlameSession(sharkFin(), FRAME, WIDTH, HEIGHT).checkpoint(file);
+
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+		transformations.add(new FlameTransformation(new AffineTransformation(0.5, 0, 0, 0, 0.5, 0), new double[] {1, 0, 0, 0, 0, 0}));
+
+		try {
+			FlameSession.restore(new Flame(transformations), file);
+			fail();
+		}
+		catch(IOException e) {
+			assertEquals("The checkpoint belongs to another flame", e.getMessage());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void restoreRejectsATruncatedCheckpoint() throws IOException {
+		File file = folder.newFile("session.flmc");
+		new FlameSession(sharkFin(), FRAME, WIDTH, HEIGHT).checkpoint(file);
+
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		try {
+			truncated.setLength(truncated.length() - 8);
+		}
+		finally {
+			truncated.close();
+		}
+
+		FlameSession.restore(sharkFin(), file);
+	}
+
+	@Test(expected = IOException.class)
+	public void restoreRejectsASizeTheFileDoesntHold() throws IOException {
+		File file = folder.newFile("session.flmc");
+		new FlameSession(sharkFin(), FRAME, WIDTH, HEIGHT).checkpoint(file);
+
+		RandomAccessFile patched = new RandomAccessFile(file, "rw");
+		try {
+			patched.seek(112); // Width and height, after the state of the session and the frame
+			patched.writeInt(46340);
+			patched.writeInt(46340);
+		}
+		finally {
+			patched.close();
+		}
+
+		FlameSession.restore(sharkFin(), file);
+	}
+
+	private static Flame sharkFin() {
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.4113504, -0.7124804, -0.4, 0.7124795, -0.4113508, 0.8), new double[] {1, 0.1, 0, 0, 0, 0}));
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.3957339, 0, -1.6, 0, -0.3957337, 0.2), new double[] {0, 0, 0, 0, 0.8, 1}));
+		transformations.add(new FlameTransformation(new AffineTransformation(0.4810169, 0, 1, 0, 0.4810169, 0.9), new double[] {1, 0, 0, 0, 0, 0}));
+
+		return new Flame(transformations);
+	}
+
+	/* The planes of an accumulator, as written uncompressed */
+	private static byte[] planes(FlameAccumulator accumulator) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		accumulator.writeTo(out, false);
+
+		return out.toByteArray();
+	}
+}
@@ -1,7 +1,8 @@
 /**
  * FlameTransformation class
  * Used to transform points in order to draw a flame type fractal.
- * This type of transformation has an affine transformation assigned and an array of variation weight
+ * This type of transformation has an affine transformation assigned, an array of variation weight
+ * and a weight giving its probability to be chosen by the chaos algorithm
  * 
  * @author Sydney Hauke
  * @author David Resin
@@ -14,39 +15,124 @@ import ch.epfl.flamemaker.geometry2d.*;
 final public class FlameTransformation implements Transformation{
 	private AffineTransformation transformation;
 	private double[] variationWeight;
+	private double weight;
+	private double colorIndex; // NaN when the color index is given by the position of the transformation in the flame
+	
+	/* Compiled form, only made of the variations with a non-zero weight */
+	private final double[] affine; // a, b, c, d, e, f of the affine transformation
+	private final int[] activeVariations;
+	private final double[] activeWeights;
+	private final boolean linear; // Only the linear variation is active, its weight is then folded into the affine coefficients
 	
 	/**
-	 * FlameTransformation constructor
+	 * FlameTransformation constructor, with a weight of 1
 	 * 
 	 * @param affineTransformation A new affine transformation to be assigned to the flame transformation
 	 * @param variationWeight An array of variation weight
 	 */
 	public FlameTransformation(AffineTransformation affineTransformation, double[] variationWeight) {
+		this(affineTransformation, variationWeight, 1);
+	}
+	
+	/**
+	 * FlameTransformation constructor
+	 * 
+	 * @param affineTransformation A new affine transformation to be assigned to the flame transformation
+	 * @param variationWeight An array of variation weight
+	 * @param weight The weight of the transformation. Its probability to be chosen is its weight divided by the sum of the weights of the flame
+	 * @throws IllegalArgumentException When there aren't 6 variation weights or when the weight is negative or not finite
+	 */
+	public FlameTransformation(AffineTransformation affineTransformation, double[] variationWeight, double weight) {
 		if(variationWeight.length != 6) {
 			throw new IllegalArgumentException("6 variations sont nécessaires à la transformation");
 		}
 		
+		if(!(weight >= 0) || Double.isInfinite(weight)) {
+			throw new IllegalArgumentException("The weight must be a positive number");
+		}
+		
 		this.variationWeight = variationWeight.clone();
 		this.transformation = affineTransformation;
+		this.weight = weight;
+		this.colorIndex = Double.NaN;
+		
+		int active = 0;
+		for(int i = 0; i < 6; i++) {
+			if(variationWeight[i] != 0.0) active++;
+		}
+		
+		activeVariations = new int[active];
+		activeWeights = new double[active];
+		active = 0;
+		for(int i = 0; i < 6; i++) {
+			if(variationWeight[i] != 0.0) {
+				activeVariations[active] = i;
+				activeWeights[active] = variationWeight[i];
+				active++;
+			}
+		}
+		
+		affine = affineTransformation.coefficients();
+		linear = (active == 1 && activeVariations[0] == 0);
+		
+		if(linear) {
+			for(int i = 0; i < 6; i++) {
+				affine[i] *= activeWeights[0];
+			}
+		}
+	}
+	
+	/*
+	 * Used by the builder to keep the color index
+	 */
+	private FlameTransformation(AffineTransformation affineTransformation, double[] variationWeight, double weight, double colorIndex) {
+		this(affineTransformation, variationWeight, weight);
+		this.colorIndex = colorIndex;
 	}
 	
 	/**
 	 * @see ch.epfl.flamemaker.geometry2d.Transformation#transformPoint(ch.epfl.flamemaker.geometry2d.Point)
 	 */
 	public Point transformPoint(Point p) {
-		Point affineTransformedPoint = transformation.transformPoint(p);
-		Point r;
-		double finalX = 0, finalY = 0;
+		double x = (affine[0] * p.x()) + (affine[1] * p.y()) + affine[2];
+		double y = (affine[3] * p.x()) + (affine[4] * p.y()) + affine[5];
 		
-		for (int i = 0; i < 6; i++) {
-			if(variationWeight[i] == 0.0) continue;
-			
-			r = (Variation.ALL_VARIATIONS.get(i)).transformPoint(affineTransformedPoint);
-			finalX += r.x() * variationWeight[i];
-			finalY += r.y() * variationWeight[i];
+		if(linear) {
+			return new Point(x, y); // Nothing more than the affine transformation
 		}
+		
+		double[] result = new double[2];
+		Variation.transform(activeVariations, activeWeights, 0, activeVariations.length, x, y, result);
 
-		return new Point(finalX, finalY);
+		return new Point(result[0], result[1]);
+	}
+	
+	/**
+	 * @return The coefficients of the affine transformation, multiplied by the weight of the linear variation when it is the only one
+	 */
+	double[] affineCoefficients() {
+		return affine.clone();
+	}
+	
+	/**
+	 * @return The indexes of the variations with a non-zero weight
+	 */
+	int[] activeVariations() {
+		return activeVariations.clone();
+	}
+	
+	/**
+	 * @return The weights of the variations with a non-zero weight, in the same order as activeVariations()
+	 */
+	double[] activeWeights() {
+		return activeWeights.clone();
+	}
+	
+	/**
+	 * @return true if the transformation is reduced to its affine coefficients
+	 */
+	boolean isLinear() {
+		return linear;
 	}
 
     /**
@@ -56,6 +142,8 @@ final public class FlameTransformation implements Transformation{
     public static class Builder {
         private AffineTransformation transformation;
         private double[] variationWeight;
+        private double weight;
+        private double colorIndex;
 
         /**
          * Builder constructor
@@ -65,6 +153,8 @@ final public class FlameTransformation implements Transformation{
         public Builder(FlameTransformation flameTransformation) {
             this.transformation = flameTransformation.transformation;
             this.variationWeight = flameTransformation.variationWeight.clone();
+            this.weight = flameTransformation.weight;
+            this.colorIndex = flameTransformation.colorIndex;
         }
         
         /**
@@ -96,6 +186,48 @@ final public class FlameTransformation implements Transformation{
             this.variationWeight[index] = variationWeight;
         }
 
+        /**
+         * Weight getter
+         * 
+         * @return The weight of the transformation
+         */
+        public double weight() {
+            return this.weight;
+        }
+
+        /**
+         * Weight setter
+         * 
+         * @param weight The weight to assign
+         */
+        public void setWeight(double weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * Color index getter
+         * 
+         * @return The color index of the transformation, or NaN when it is given by the position of the transformation in the flame
+         */
+        public double colorIndex() {
+            return this.colorIndex;
+        }
+
+        /**
+         * Color index setter
+         * Overrides the color index given by the position of the transformation in the flame
+         * 
+         * @param colorIndex The color index to assign, or NaN to use the one given by the position of the transformation again
+         * @throws IllegalArgumentException When colorIndex isn't included in [0,1] nor NaN
+         */
+        public void setColorIndex(double colorIndex) {
+            if(colorIndex < 0 || colorIndex > 1) {
+                throw new IllegalArgumentException("The color index must be between 0 and 1");
+            }
+
+            this.colorIndex = colorIndex;
+        }
+
         /**
          * AffineTransformation setter
          * 
@@ -111,7 +243,7 @@ final public class FlameTransformation implements Transformation{
          * @return A new immutable FlameTransformation
          */
         public FlameTransformation build() {
-            return new FlameTransformation(this.transformation, this.variationWeight);
+            return new FlameTransformation(this.transformation, this.variationWeight, this.weight, this.colorIndex);
         }
     }
 }
@@ -0,0 +1,67 @@
+/**
+ * MappedBuffers class
+ * Unmaps memory-mapped buffers as soon as they aren't needed anymore. The JVM only unmaps a buffer once the
+ * garbage collector has found it unreachable, so the mappings dropped by a long computation could otherwise
+ * pile up in the address space. There is no public way to do it before Java 9 : the cleaner of the buffer
+ * is called through reflection, and the buffer is left to the garbage collector when the JVM doesn't allow it.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+final class MappedBuffers {
+	private static final Object UNSAFE; // sun.misc.Unsafe from Java 9, null before
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		}
+		catch(Exception e) { // Java 7 and 8, the cleaner of each buffer is used instead
+			invokeCleaner = null;
+		}
+
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private MappedBuffers() {}
+
+	/**
+	 * Unmaps a buffer at once, when the JVM allows it. The buffer mustn't be used anymore after it,
+	 * not even by another thread : reading an unmapped buffer crashes the JVM.
+	 *
+	 * @param buffer The buffer to unmap
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		try {
+			if(INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			}
+			else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+
+				if(cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}
+		catch(Exception e) {
+			// Left to the garbage collector
+		}
+	}
+}
@@ -0,0 +1,20 @@
+/**
+ * PointAccumulator interface
+ * Stores the points computed by the chaos algorithm
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+public interface PointAccumulator {
+	/**
+	 * Stores the given point with his color index, if it is in the frame of the accumulator
+	 *
+	 * @param x The x coordinate of the point to store
+	 * @param y The y coordinate of the point to store
+	 * @param colorIndex The point's color index
+	 */
+	public void hit(double x, double y, double colorIndex);
+}
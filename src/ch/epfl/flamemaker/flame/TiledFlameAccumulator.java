@@ -0,0 +1,338 @@
+/**
+ * Tiled flame accumulator class
+ * Stores the points computed in a memory-mapped scratch file instead of the heap, so that the size
+ * of the image is limited by the disk space only.
+ *
+ * The accumulator is cut into square tiles, each of them being a region of the file holding the
+ * number of points and the sum of the color indexes of its cells. A tile is mapped when a point falls
+ * into it, the operating system then pages the tiles in and out of memory as the orbit moves around.
+ * The image is colorized directly from the file, row by row.
+ *
+ * Only a bounded number of tiles are mapped at once. When another one is needed, a tile that hasn't
+ * been used lately is unmapped, chosen with the clock algorithm : an approximation of the least recently
+ * used tile that only costs a flag per point. Its points stay in the file, where it is mapped again from.
+ *
+ * A tiled accumulator is filled by a single thread, with Flame.computeInto for instance. Once filled, it can be
+ * read by several threads at once, by the parallel image writers for instance : the table of the tiles is locked,
+ * and a tile being read is pinned so that no other thread unmaps it meanwhile. A thread needing another tile
+ * while all the tiles mapped are pinned waits for one of them to be released.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public final class TiledFlameAccumulator implements PointAccumulator, FlameImage, Closeable {
+	public static final int DEFAULT_TILE_SIZE = 1024;
+	public static final long DEFAULT_MAPPED_BYTES = 1L << 30; // Tiles mapped at once by default, in bytes
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width, height, tileSize, tilesX;
+	private final int sumsOffset; // The counts of a tile come first, then the sums of its color indexes
+	private final long tileBytes;
+	private final MappedByteBuffer[] tiles; // null when the tile isn't mapped
+	private final boolean[] recentlyUsed; // Used since the hand of the clock last passed on the tile
+	private final int[] pins; // Number of threads using each tile, which can't be unmapped meanwhile
+	private final int[] mapped; // The tiles mapped, in the order of the clock
+	private int mappedCount, pinnedCount, hand;
+	private final CellMapping mapping;
+	private int maxCount;
+	private double logMaxCount; // Math.log(maxCount + 1), which divides the log of each count
+
+	/**
+	 * TiledFlameAccumulator constructor, with tiles of 1024 x 1024 cells
+	 *
+	 * @param frame The frame where all points that are contained by him are stored
+	 * @param width The width of the accumulator (or the "image")
+	 * @param height The height of the accumulator (or the "image")
+	 * @param scratch The scratch file holding the tiles. It is created, or overwritten
+	 * @throws IOException When the scratch file can't be created
+	 */
+	public TiledFlameAccumulator(Rectangle frame, int width, int height, File scratch) throws IOException {
+		this(frame, width, height, scratch, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * TiledFlameAccumulator constructor, mapping at most 1 GB of tiles at once
+	 *
+	 * @param frame The frame where all points that are contained by him are stored
+	 * @param width The width of the accumulator (or the "image")
+	 * @param height The height of the accumulator (or the "image")
+	 * @param scratch The scratch file holding the tiles. It is created, or overwritten
+	 * @param tileSize The number of cells of a side of a tile
+	 * @throws IOException When the scratch file can't be created
+	 * @throws IllegalArgumentException When a size isn't positive or when a tile is larger than 2 GB
+	 */
+	public TiledFlameAccumulator(Rectangle frame, int width, int height, File scratch, int tileSize) throws IOException {
+		this(frame, width, height, scratch, tileSize, (int)Math.max(1, Math.min(Integer.MAX_VALUE, DEFAULT_MAPPED_BYTES / (12L * Math.max(1, tileSize) * Math.max(1, tileSize)))));
+	}
+
+	/**
+	 * TiledFlameAccumulator constructor
+	 *
+	 * @param frame The frame where all points that are contained by him are stored
+	 * @param width The width of the accumulator (or the "image")
+	 * @param height The height of the accumulator (or the "image")
+	 * @param scratch The scratch file holding the tiles. It is created, or overwritten
+	 * @param tileSize The number of cells of a side of a tile
+	 * @param maxMappedTiles The greatest number of tiles mapped at once
+	 * @throws IOException When the scratch file can't be created
+	 * @throws IllegalArgumentException When a size or maxMappedTiles isn't positive or when a tile is larger than 2 GB
+	 */
+	public TiledFlameAccumulator(Rectangle frame, int width, int height, File scratch, int tileSize, int maxMappedTiles) throws IOException {
+		if(width <= 0 || height <= 0 || tileSize <= 0 || 12L * tileSize * tileSize > Integer.MAX_VALUE || maxMappedTiles <= 0) {
+			throw new IllegalArgumentException();
+		}
+
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.tilesX = (width + tileSize - 1) / tileSize;
+		this.sumsOffset = 4 * tileSize * tileSize;
+		this.tileBytes = 12L * tileSize * tileSize;
+		this.tiles = new MappedByteBuffer[tilesX * ((height + tileSize - 1) / tileSize)];
+		this.recentlyUsed = new boolean[tiles.length];
+		this.pins = new int[tiles.length];
+		this.mapped = new int[Math.min(tiles.length, maxMappedTiles)];
+
+		mapping = new CellMapping(frame, width, height);
+
+		/* The file is sparse : only the tiles hit take room on the disk */
+		file = new RandomAccessFile(scratch, "rw");
+		file.setLength(0);
+		file.setLength(tiles.length * tileBytes);
+		channel = file.getChannel();
+	}
+
+	/**
+	 * Width getter
+	 *
+	 * @return The width of the accumulator
+	 */
+	public int width() {
+		return width;
+	}
+
+	/**
+	 * Height getter
+	 *
+	 * @return The height of the accumulator
+	 */
+	public int height() {
+		return height;
+	}
+
+	/**
+	 * @see ch.epfl.flamemaker.flame.PointAccumulator#hit(double, double, double)
+	 */
+	public void hit(double x, double y, double colorIndex) {
+		int i = mapping.row(y);
+		int j = mapping.column(x);
+
+		if((i | j) >= 0) { // One of them is -1 when the point is out of the frame
+			int index = tileIndex(i, j);
+			ByteBuffer tile = acquire(index);
+
+			try {
+				int cell = cell(i, j);
+
+				int count = tile.getInt(4 * cell) + 1; //There is a new point in this box
+				tile.putInt(4 * cell, count);
+				tile.putLong(sumsOffset + 8 * cell, tile.getLong(sumsOffset + 8 * cell) + (long)(colorIndex * FlameAccumulator.COLOR_INDEX_UNIT + 0.5));
+
+				if(count > maxCount) {
+					maxCount = count;
+					logMaxCount = Math.log(count + 1);
+				}
+			}
+			finally {
+				release(index); // Publishes the points to the threads reading the tile afterwards
+			}
+		}
+	}
+
+	/**
+	 * Gets the intensity of a pixel at coordinates (x,y)
+	 *
+	 * @param x The x coordinate of the accumulator
+	 * @param y The y coordinate of the accumulator
+	 * @return The intensity of a pixel of the fractal
+	 */
+	public double intensity(int x, int y) {
+		checkPixel(x, y);
+
+		return Math.log(count(y, x) + 1) / logMaxCount; // applying a log to smooth the contrast of the image
+	}
+
+	/**
+	 * @see ch.epfl.flamemaker.flame.FlameImage#color(ch.epfl.flamemaker.color.Palette, ch.epfl.flamemaker.color.Color, int, int)
+	 */
+	public Color color(Palette palette, Color background, int x, int y) {
+		checkPixel(x, y);
+
+		int index = tileIndex(y, x), count;
+		long colorIndexSum;
+		ByteBuffer tile = acquire(index);
+
+		try {
+			count = tile.getInt(4 * cell(y, x));
+			colorIndexSum = tile.getLong(sumsOffset + 8 * cell(y, x));
+		}
+		finally {
+			release(index);
+		}
+
+		if(count == 0 || colorIndexSum == 0) return background;
+
+		Color properColor = palette.colorForIndex(colorIndexSum / (FlameAccumulator.COLOR_INDEX_UNIT * count));
+		return background.mixWith(properColor, Math.log(count + 1) / logMaxCount);
+	}
+
+	/**
+	 * Unmaps the tiles and closes the scratch file. The accumulator can't be used anymore after it.
+	 *
+	 * @throws IOException When the file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		for(int k = 0; k < mappedCount; k++) {
+			unmap(mapped[k]);
+		}
+
+		mappedCount = 0;
+		channel.close();
+		file.close();
+	}
+
+	/*
+	 * Number of points of the cell at row i and column j
+	 */
+	private int count(int i, int j) {
+		int index = tileIndex(i, j);
+		ByteBuffer tile = acquire(index);
+
+		try {
+			return tile.getInt(4 * cell(i, j));
+		}
+		finally {
+			release(index);
+		}
+	}
+
+	/*
+	 * Position of the cell at row i and column j in its tile
+	 */
+	private int cell(int i, int j) {
+		return (i % tileSize) * tileSize + (j % tileSize);
+	}
+
+	/*
+	 * Index of the tile of the cell at row i and column j
+	 */
+	private int tileIndex(int i, int j) {
+		return (i / tileSize) * tilesX + (j / tileSize);
+	}
+
+	/*
+	 * Pins a tile, mapped if it isn't, until it is released. When all the tiles mapped are pinned by other
+	 * threads, waits for one of them to be released first.
+	 */
+	private synchronized ByteBuffer acquire(int index) {
+		while(tiles[index] == null) {
+			if(mappedCount < mapped.length || pinnedCount < mappedCount) {
+				map(index);
+			}
+			else {
+				try {
+					wait();
+				}
+				catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("The computation has been interrupted", e);
+				}
+			}
+		}
+
+		if(pins[index]++ == 0) pinnedCount++;
+		recentlyUsed[index] = true;
+
+		return tiles[index];
+	}
+
+	/*
+	 * Releases a tile pinned by acquire, which can be unmapped again once no thread uses it
+	 */
+	private synchronized void release(int index) {
+		if(--pins[index] == 0) {
+			pinnedCount--;
+			notifyAll();
+		}
+	}
+
+	/*
+	 * Maps a tile, unmapping another one first when there are already as many tiles mapped as allowed.
+	 * The hand of the clock goes round the tiles mapped, giving a second chance to the ones used since its last
+	 * pass, and unmaps the first one that hasn't been and isn't pinned. There is one, as acquire checks it.
+	 */
+	private void map(int index) {
+		int slot;
+
+		if(mappedCount < mapped.length) {
+			slot = mappedCount++;
+		}
+		else {
+			while(recentlyUsed[mapped[hand]] || pins[mapped[hand]] > 0) {
+				recentlyUsed[mapped[hand]] = false;
+				hand = (hand + 1) % mapped.length;
+			}
+
+			slot = hand;
+			hand = (hand + 1) % mapped.length;
+			unmap(mapped[slot]);
+		}
+
+		try {
+			tiles[index] = channel.map(FileChannel.MapMode.READ_WRITE, index * tileBytes, tileBytes);
+			tiles[index].order(ByteOrder.nativeOrder());
+		}
+		catch(IOException e) {
+			mapped[slot] = mapped[--mappedCount]; // The slot is free again
+			throw new IllegalStateException("The tile " + index + " can't be mapped", e);
+		}
+
+		mapped[slot] = index;
+	}
+
+	/*
+	 * Unmaps a tile, whose points stay in the file
+	 */
+	private void unmap(int index) {
+		MappedByteBuffer tile = tiles[index];
+		tiles[index] = null;
+		recentlyUsed[index] = false;
+
+		MappedBuffers.unmap(tile);
+	}
+
+	/*
+	 * Needed to check the coordinates of a pixel
+	 */
+	private void checkPixel(int x, int y) {
+		if(x < 0 || x >= width || y < 0 || y >= height) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * TiledFlameAccumulatorTest class
+ * Checks that the tiled accumulator gives the same image as the one in memory, with few tiles mapped at once,
+ * and that several threads can read it at the same time while its tiles are unmapped and mapped again.
+ *
+ * @author Sydney Hauke
+ * @author David Resin
+ */
+
+package ch.epfl.flamemaker.flame;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.epfl.flamemaker.color.*;
+import ch.epfl.flamemaker.geometry2d.*;
+
+public class TiledFlameAccumulatorTest {
+	private static final Rectangle FRAME = new Rectangle(new Point(-0.25, 0), 5, 4);
+	private static final Palette PALETTE = new InterpolatedPalette(Arrays.asList(Color.RED, Color.GREEN, Color.BLUE));
+	private static final int WIDTH = 200, HEIGHT = 160, DENSITY = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void givesTheImageOfTheAccumulatorInMemory() throws Exception {
+		Flame flame = sharkFin();
+		FlameAccumulator expected = flame.compute(FRAME, WIDTH, HEIGHT, DENSITY, 2013, 1);
+
+		for(int maxMappedTiles : new int[] {1, 3, 1000}) {
+			TiledFlameAccumulator tiled = new TiledFlameAccumulator(FRAME, WIDTH, HEIGHT, folder.newFile(), 16, maxMappedTiles);
+
+			try {
+				flame.computeInto(tiled, (long)DENSITY * WIDTH * HEIGHT, 2013);
+
+				for(int y = 0; y < HEIGHT; y++) {
+					for(int x = 0; x < WIDTH; x++) {
+						assertEquals(expected.intensity(x, y), tiled.intensity(x, y), 0);
+						assertEquals(expected.color(PALETTE, Color.BLACK, x, y).asPackedRGB(), tiled.color(PALETTE, Color.BLACK, x, y).asPackedRGB());
+					}
+				}
+			}
+			finally {
+				tiled.close();
+			}
+		}
+	}
+
+	@Test
+	public void canBeWrittenByParallelWritersWithFewTilesMapped() throws Exception {
+		TiledFlameAccumulator tiled = new TiledFlameAccumulator(FRAME, WIDTH, HEIGHT, folder.newFile(), 8, 2);
+
+		try {
+			sharkFin().computeInto(tiled, (long)DENSITY * WIDTH * HEIGHT, 2013);
+
+			File sequential = folder.newFile("sequential.ppm");
+			FlameImageWriter.write(sequential.toPath(), FlameImageWriter.Format.P6, tiled, PALETTE, Color.BLACK);
+
+			for(int threads : new int[] {2, 4, 8}) {
+				File parallel = folder.newFile("parallel-" + threads + ".ppm");
+				FlameImageWriter.writeParallel(parallel.toPath(), FlameImageWriter.Format.P6, tiled, PALETTE, Color.BLACK, threads);
+
+				assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(parallel.toPath()));
+			}
+		}
+		finally {
+			tiled.close();
+		}
+	}
+
+	private static Flame sharkFin() {
+		List<FlameTransformation> transformations = new ArrayList<FlameTransformation>();
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.4113504, -0.7124804, -0.4, 0.7124795, -0.4113508, 0.8), new double[] {1, 0.1, 0, 0, 0, 0}));
+		transformations.add(new FlameTransformation(new AffineTransformation(-0.3957339, 0, -1.6, 0, -0.3957337, 0.2), new double[] {0, 0, 0, 0, 0.8, 1}));
+		transformations.add(new FlameTransformation(new AffineTransformation(0.4810169, 0, 1, 0, 0.4810169, 0.9), new double[] {1, 0, 0, 0, 0, 0}));
+
+		return new Flame(transformations);
+	}
+}
@@ -44,6 +44,72 @@ public abstract class Variation implements Transformation {
 	
 	abstract public Point transformPoint(Point p);
 	
+	/**
+	 * Applies the variations [from, to[ of the given arrays to a point and sums their results, weighted.
+	 * Same as the transformPoint methods, but the variations are chosen by their index with a switch
+	 * instead of a virtual call and the point is given as primitive values.
+	 * 
+	 * @param indexes The indexes of the variations to apply
+	 * @param weights The weight of each variation
+	 * @param from The first variation to apply
+	 * @param to The end of the variations to apply (exclusive)
+	 * @param x The x coordinate of the point
+	 * @param y The y coordinate of the point
+	 * @param result Array receiving the x and y coordinates of the result
+	 */
+	static void transform(int[] indexes, double[] weights, int from, int to, double x, double y, double[] result) {
+		double r2 = (x * x) + (y * y);
+		double finalX = 0, finalY = 0;
+		
+		for(int j = from; j < to; j++) {
+			double w = weights[j];
+			
+			switch(indexes[j]) {
+			case 0: // Linear
+				finalX += w * x;
+				finalY += w * y;
+				break;
+			case 1: // Sinusoidal
+				finalX += w * Math.sin(x);
+				finalY += w * Math.sin(y);
+				break;
+			case 2: // Spherical
+				if(r2 == 0.0) {
+					finalX += w * x;
+					finalY += w * y;
+				}
+				else {
+					finalX += w * x / r2;
+					finalY += w * y / r2;
+				}
+				break;
+			case 3: // Swirl
+				double sin = Math.sin(r2), cos = Math.cos(r2);
+				finalX += w * ((x * sin) - (y * cos));
+				finalY += w * ((x * cos) + (y * sin));
+				break;
+			case 4: // Horseshoe
+				if(r2 == 0.0) {
+					finalX += w * x;
+					finalY += w * y;
+				}
+				else {
+					double r = Math.sqrt(r2);
+					finalX += w * ((x - y) * (x + y)) / r;
+					finalY += w * (2 * x * y) / r;
+				}
+				break;
+			default: // Bubble
+				finalX += w * (4 * x) / (r2 + 4);
+				finalY += w * (4 * y) / (r2 + 4);
+				break;
+			}
+		}
+		
+		result[0] = finalX;
+		result[1] = finalY;
+	}
+	
 	/**
 	 * List of all the possible variations as anonymous classes
 	 * 
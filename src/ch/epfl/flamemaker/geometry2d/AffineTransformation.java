@@ -99,6 +99,13 @@ final public class AffineTransformation {
 		return new Point(x, y);
 	}
 	
+	/**
+	 * @return The six components of the matrix, in the order a, b, c, d, e, f
+	 */
+	public double[] coefficients() {
+		return new double[] {a, b, c, d, e, f};
+	}
+	
 	/**
 	 * @return c component of the matrix (representing the x translation)
 	 */
@@ -13,14 +13,14 @@ import java.awt.Dimension;
 public class FlameBuilderPreviewComponent extends JComponent {
     private Flame.Builder fractalBuild;	
     private Color background;
-    private Palette palette;
+    private BakedPalette palette; // Baked once, instead of at each repaint
     private Rectangle frame;
     private int density;
 
 	public FlameBuilderPreviewComponent(Flame.Builder fractalBuild, Color background, Palette palette, Rectangle frame, int density) {
         this.fractalBuild = fractalBuild;
         this.background = background;
-        this.palette = palette;
+        this.palette = BakedPalette.of(palette);
         this.frame = frame;
         this.density = density;        
 	}
@@ -35,11 +35,8 @@ public class FlameBuilderPreviewComponent extends JComponent {
         Rectangle idealFrame = frame.expandToAspectRatio((double)getWidth()/(double)getHeight());
         FlameAccumulator fractal = fractalBuild.build().compute(idealFrame, getWidth(), getHeight(), density);
 
-        for(int i = 0; i < fractal.height(); i++) {
-            for(int k = 0; k < fractal.width(); k++) {
-                image.setRGB(k, i, fractal.color(palette, background, k, fractal.height()-i-1).asPackedRGB());
-            }
-        }
+        int[] rgb = fractal.colorize(palette, background, 1); // On the event dispatch thread, without a pool per repaint. Top row first, as the image
+        image.setRGB(0, 0, fractal.width(), fractal.height(), rgb, 0, fractal.width());
         
         g1.drawImage(image, 0, 0, null);				
     }